@@ -0,0 +1,139 @@
+package flyingbot.it.hq.ws.bench;
+
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.hq.ws.system.HQSubscribers;
+import flyingbot.it.util.Result;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Allocation and time per tick of the fan-out path, from market data arriving
+ * at subscribers to frames written to channels.
+ * <p>
+ * Each round subscribes the given number of channels to one instrument, sends
+ * ticks through {@link HQSubscribers#onMarketData}, and reports bytes allocated
+ * by the sending thread per tick. Written frames are drained from channels
+ * between batches, outside the measured window.
+ * <p>
+ * Usage: java HQFanoutBenchmark [ticks] [subscribers...], default 100000 ticks
+ * for 1, 100 and 1000 subscribers.
+ */
+public class HQFanoutBenchmark {
+    // Ticks between draining channels
+    final static int Batch = 100;
+
+    public static void main(String[] args) {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int[] subscribers = {1, 100, 1000};
+        if (args.length > 1) {
+            subscribers = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                subscribers[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        Logger log = Logger.getLogger(HQFanoutBenchmark.class.getName());
+        log.setLevel(Level.WARNING);
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!mx.isThreadAllocatedMemorySupported()) {
+            System.err.println("Thread allocated memory not supported by JVM.");
+            return;
+        }
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.println("subscribers\tticks\tbytes/tick\tbytes/tick/subscriber\tns/tick");
+        for (int n : subscribers) {
+            run(log, mx, n, ticks);
+        }
+    }
+
+    static void run(Logger log, com.sun.management.ThreadMXBean mx, int n, int ticks) {
+        HQSubscribers subs = new HQSubscribers(log);
+        String inst = "rb1905";
+
+        // Registered as inside feed does
+        int id = subs.instrumentId(inst);
+        EmbeddedChannel[] chs = new EmbeddedChannel[n];
+        for (int i = 0; i < n; ++i) {
+            chs[i] = new EmbeddedChannel();
+            Result r = subs.subscribe(inst, chs[i]);
+            if (r.equals(Result.Error)) {
+                throw new IllegalStateException("Subscribing failed, " + r.Message);
+            }
+        }
+        MarketData md = tick(inst);
+
+        // Warm up JIT and pooled buffers
+        send(mx, subs, id, md, chs, Math.min(ticks, 20000), null, null);
+
+        long[] bytes = new long[1];
+        long[] nanos = new long[1];
+        send(mx, subs, id, md, chs, ticks, bytes, nanos);
+
+        System.out.println(n + "\t" + ticks + "\t" + bytes[0] / ticks + "\t" + bytes[0] / ticks / n
+                + "\t" + nanos[0] / ticks);
+
+        for (EmbeddedChannel c : chs) {
+            c.finishAndReleaseAll();
+        }
+        subs.closeAll();
+    }
+
+    static void send(com.sun.management.ThreadMXBean mx, HQSubscribers subs, int id, MarketData md,
+                     EmbeddedChannel[] chs, int ticks, long[] bytes, long[] nanos) {
+        long tid = Thread.currentThread().getId();
+        for (int done = 0; done < ticks; done += Batch) {
+            int k = Math.min(Batch, ticks - done);
+
+            // Measure sending only
+            long b0 = mx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < k; ++i) {
+                md.Volume += 1;
+                md.LastPrice += 0.5;
+                subs.onMarketData(id, md);
+            }
+            long t1 = System.nanoTime();
+            long b1 = mx.getThreadAllocatedBytes(tid);
+            if (bytes != null) {
+                bytes[0] += b1 - b0;
+                nanos[0] += t1 - t0;
+            }
+
+            // Drain written frames
+            for (EmbeddedChannel c : chs) {
+                Object m;
+                while ((m = c.readOutbound()) != null) {
+                    ReferenceCountUtil.release(m);
+                }
+            }
+        }
+    }
+
+    static MarketData tick(String inst) {
+        MarketData md = new MarketData();
+        md.InstrumentID = inst;
+        md.TradingDay = "20190102";
+        md.ActionDay = "20190102";
+        md.UpdateTime = "09:30:01";
+        md.UpdateMillisec = 500;
+        md.LastPrice = 3500;
+        md.PreSettlementPrice = 3480;
+        md.PreClosePrice = 3482;
+        md.OpenPrice = 3490;
+        md.HighestPrice = 3510;
+        md.LowestPrice = 3470;
+        md.Volume = 100000;
+        md.OpenInterest = 2000000;
+        md.BidPrice1 = 3499;
+        md.AskPrice1 = 3501;
+        md.BidVolume1 = 10;
+        md.AskVolume1 = 12;
+        return md;
+    }
+}
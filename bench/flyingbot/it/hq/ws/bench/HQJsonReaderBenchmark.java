@@ -0,0 +1,136 @@
+package flyingbot.it.hq.ws.bench;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.hq.ws.system.HQDataSink;
+import flyingbot.it.hq.ws.system.HQJsonReader;
+import flyingbot.it.util.Result;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static flyingbot.it.hq.ws.resources.Constants.MetadataTag;
+
+/**
+ * Throughput of inside feed parsing on a recorded tick file, streaming reader
+ * against the org.json parsing it replaces.
+ * <p>
+ * The file has one feed message per line, an object or an array of objects as
+ * sent by feeders. All messages are parsed in each round, and the best round of
+ * each parser is reported.
+ * <p>
+ * Usage: java HQJsonReaderBenchmark file [rounds], default 10 rounds.
+ */
+public class HQJsonReaderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: HQJsonReaderBenchmark file [rounds]");
+            return;
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        // Load messages
+        List<byte[]> msgs = new ArrayList<>();
+        long bytes = 0;
+        for (String line : Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            byte[] b = line.getBytes(StandardCharsets.UTF_8);
+            msgs.add(b);
+            bytes += b.length;
+        }
+        if (msgs.isEmpty()) {
+            System.err.println("No message in " + args[0]);
+            return;
+        }
+
+        CountingSink sink = new CountingSink();
+        HQJsonReader reader = new HQJsonReader();
+        long bestReader = Long.MAX_VALUE, bestJson = Long.MAX_VALUE;
+        long objects = 0;
+        for (int r = 0; r < rounds; ++r) {
+            sink.count = 0;
+            long t0 = System.nanoTime();
+            for (byte[] b : msgs) {
+                reader.read(b, 0, b.length, sink);
+            }
+            bestReader = Math.min(bestReader, System.nanoTime() - t0);
+            objects = sink.count;
+
+            sink.count = 0;
+            t0 = System.nanoTime();
+            for (byte[] b : msgs) {
+                parseJson(b, sink);
+            }
+            bestJson = Math.min(bestJson, System.nanoTime() - t0);
+        }
+
+        System.out.println("messages: " + msgs.size() + ", objects: " + objects + ", bytes: " + bytes);
+        report("HQJsonReader", msgs.size(), objects, bytes, bestReader);
+        report("org.json", msgs.size(), objects, bytes, bestJson);
+    }
+
+    static void report(String name, int msgs, long objects, long bytes, long nanos) {
+        double s = nanos / 1e9;
+        System.out.printf("%-12s %10.0f msg/s %10.0f obj/s %8.1f MB/s%n",
+                name, msgs / s, objects / s, bytes / s / (1024 * 1024));
+    }
+
+    // Parsing before the streaming reader
+    static void parseJson(byte[] b, CountingSink sink) {
+        String s = new String(b, StandardCharsets.UTF_8).trim();
+        if (s.startsWith("[")) {
+            JSONArray arr = new JSONArray(s);
+            for (int i = 0; i < arr.length(); ++i) {
+                parseObject(arr.getJSONObject(i), sink);
+            }
+        } else {
+            parseObject(new JSONObject(s), sink);
+        }
+    }
+
+    static void parseObject(JSONObject o, CountingSink sink) {
+        String type = o.getString(MetadataTag);
+        if (type.equals(MarketData.DataType)) {
+            sink.onMarketData(0, MarketData.Parse(o));
+        } else if (type.equals(Candle.DataType)) {
+            sink.onCandle(0, Candle.Parse(o));
+        }
+    }
+
+    /**
+     * Count parsed objects, and keep the last so parsing is not optimized away.
+     */
+    static class CountingSink implements HQDataSink {
+        long count;
+        Object last;
+        Result ok = new Result();
+
+        @Override
+        public int instrumentId(String inst) {
+            return 0;
+        }
+
+        @Override
+        public Result onMarketData(int id, MarketData d) {
+            ++count;
+            last = d;
+            return ok;
+        }
+
+        @Override
+        public Result onCandle(int id, Candle c) {
+            ++count;
+            last = c;
+            return ok;
+        }
+    }
+}
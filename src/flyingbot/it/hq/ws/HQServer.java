@@ -1,6 +1,7 @@
 package flyingbot.it.hq.ws;
 
 import flyingbot.it.hq.ws.resources.Constants;
+import flyingbot.it.hq.ws.system.HQDeflate;
 import flyingbot.it.hq.ws.system.HQInsideServer;
 import flyingbot.it.hq.ws.system.HQServerContext;
 import flyingbot.it.util.Common;
@@ -12,10 +13,16 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import static flyingbot.it.hq.ws.resources.Constants.*;
 
@@ -32,6 +39,24 @@ public class HQServer {
 		}
 	}
 	
+	protected static List<String> getWatchlist() {
+		List<String> ret = new ArrayList<String>();
+		InputStream is = Constants.class.getResourceAsStream("watchlist.json");
+		if (is == null) {
+			return ret;
+		}
+
+		// Load JSON as stream
+		JSONObject o = Common.LoadJSONObject(is);
+		if (o.has(ConfigTag_Instruments)) {
+			JSONArray arr = o.getJSONArray(ConfigTag_Instruments);
+			for (int i = 0; i < arr.length(); ++i) {
+				ret.add(arr.getString(i));
+			}
+		}
+		return ret;
+	}
+	
 	// For short request like WebSocket, Old IO is more efficient.
 	private final EventLoopGroup group = new NioEventLoopGroup();
 	
@@ -42,7 +67,6 @@ public class HQServer {
 	private static HQServerContext serverCtx;
 	
 	// HQInsideServer, ref holder
-	@SuppressWarnings("unused")
 	private static HQInsideServer insideServer;
 	
 	public ChannelFuture start(InetSocketAddress address) {
@@ -52,6 +76,8 @@ public class HQServer {
 		// Setup bootstrap
 		bootstrap.group(group);
 		bootstrap.channel(NioServerSocketChannel.class);
+		bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+				new WriteBufferWaterMark(WsWrite_LowWaterMark, WsWrite_HighWaterMark));
 		bootstrap.childHandler(new ChatServerInitializer(serverCtx));
 		
 		// Bind address
@@ -78,6 +104,9 @@ public class HQServer {
 					if (r.equals(Result.Error)) {
 						serverCtx.LOG.warning(r.Message);
 					}
+
+					// Cached candles grow with live data
+					serverCtx.subscribers.trimCache();
 				}
 			}
 			
@@ -95,6 +124,14 @@ public class HQServer {
 		// Close connection
 		serverCtx.subscribers.closeAll();
 		group.shutdownGracefully();
+
+		// Stop inside feed
+		if (insideServer != null) {
+			insideServer.destroy();
+		}
+
+		// Flush persistent candles
+		serverCtx.subscribers.dataKeeper.destroy();
 	}
 
 	public static class ChatServerInitializer extends ChannelInitializer<Channel> {
@@ -110,16 +147,22 @@ public class HQServer {
 		protected void initChannel(Channel ch) throws Exception {
 			ChannelPipeline pipeline = ch.pipeline();
 
+			// Ticks of many instruments share flushes, at head so it sees all flushes
+			pipeline.addLast(new FlushConsolidationHandler(WsFlush_MaxFlushes, true));
+
 			// Add listener and handlers
 			pipeline.addLast(new HttpServerCodec());
 			pipeline.addLast(new ChunkedWriteHandler());
 			pipeline.addLast(new HttpObjectAggregator(HTTP_MaxContentLength));
 			pipeline.addLast(new HttpRequestHandler(svrCtx));
 
+			// Negotiate permessage-deflate, compressed frames have RSV1 set
+			pipeline.addLast(new WebSocketServerExtensionHandler(new HQDeflate.Handshaker()));
+
 			// After update to WebSocket protocol, the handler will replace HttpRequestDecoder
 			// with WebSocketFrameDecoder, and HttpResponseEncoder with WebSocketFrameEncoder, and
 			// any other ChannelHandler that are not used any more.
-			pipeline.addLast(new WebSocketServerProtocolHandler(wsURI, subProtocol));
+			pipeline.addLast(new WebSocketServerProtocolHandler(wsURI, subProtocol + "," + binSubProtocol, true));
 
 			pipeline.addLast(new TextWebSocketFrameHandler(svrCtx));
 		}
@@ -133,6 +176,12 @@ public class HQServer {
 		// Run inside HQ server
 		insideServer = new HQInsideServer(serverCtx);
 
+		// Load history of watchlist and last dominant instruments, clients are accepted after
+		// warm-up, so the first clients find cache ready
+		List<String> insts = getWatchlist();
+		insts.addAll(serverCtx.subscribers.dataKeeper.loadDominantInstruments());
+		serverCtx.subscribers.warmUp(insts, DefaultInitCandleNumber, Warmup_TimeoutMillis);
+
 		// Prepare binding address
 		int port = getListenPort();
 		System.out.println("HQWS is listening on port: " + port);
@@ -1,6 +1,10 @@
 package flyingbot.it.hq.ws;
 
+import flyingbot.it.hq.ws.resources.Constants;
+import flyingbot.it.hq.ws.system.HQBinaryWriter;
+import flyingbot.it.hq.ws.system.HQConflator;
 import flyingbot.it.hq.ws.system.HQServerContext;
+import flyingbot.it.util.Result;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
@@ -14,8 +18,10 @@ import java.util.regex.Pattern;
 import static flyingbot.it.hq.ws.resources.Constants.*;
 
 /**
- * WebSocket subprotocol is defined in {@link HQServerContext}.subprotocol, make
- * sure they are matched.
+ * WebSocket subprotocols are defined in {@link Constants}, make sure they are matched.
+ * <li>flyingbot_hq_json_ws, data in JSON text frames.
+ * <li>flyingbot_hq_bin_ws, data in binary frames, see {@link HQBinaryWriter}.
+ * Requests from client are JSON text frames in both subprotocols.
  * 
  * Two ways to subscribe an instrument,
  * <li>URI path mapping, ws://localhost:8080/(service-path)/(instrument).
@@ -35,6 +41,11 @@ import static flyingbot.it.hq.ws.resources.Constants.*;
  * Add GET parameter 'candlenumber' to the URL and get the given number of old canldes.
  * <li> ws://localhost:8080/(service-path)/(instrument)?candlenumber=555
  * 
+ * Add GET parameter 'conflate', or field 'conflate' to subscription JSON, and get
+ * only the latest tick of each instrument per interval, 0 for every tick.
+ * <li> ws://localhost:8080/(service-path)/(instrument)?conflate=250ms
+ * <li> {'type' : 'Subscription', 'conflate' : '1s', 'data' : ["rb1905"]}
+ * 
  * Client will not have response if subscription fails, in the cases that there
  * are not available instrument.
  */
@@ -61,17 +72,31 @@ public class TextWebSocketFrameHandler extends SimpleChannelInboundHandler<TextW
 			// Will not use HTTP anymore.
 			ctx.pipeline().remove(HttpRequestHandler.class);
 
+			// Select encoder for the negotiated subprotocol
+			WebSocketServerProtocolHandler.HandshakeComplete hc = (WebSocketServerProtocolHandler.HandshakeComplete) evt;
+			svrCtx.subscribers.protocol(ctx.channel(), hc.selectedSubprotocol());
+
 			// Process subscription
             String path = svrCtx.channelParameter(ctx.channel(), URIKey);
 
-			// Parse instrument id and candle number
+			// Parse instrument id, candle number and conflation
 			if (path.indexOf('?') != -1) {
 				rawInst = path.substring(0, path.indexOf('?'));
-				int tmp = Integer.parseInt(getURLValue(candleNum, path.substring(path.indexOf('?') + 1)));
-				if (tmp > 0)
-				{
-					numberCandle = tmp;
-				}	
+				String query = path.substring(path.indexOf('?') + 1);
+				String num = getURLValue(candleNum, query);
+				if (num.length() > 0) {
+					int tmp = Integer.parseInt(num);
+					if (tmp > 0)
+					{
+						numberCandle = tmp;
+					}
+				}
+
+				// Before subscription, so no tick is sent at full rate
+				String interval = getURLValue(conflate, query);
+				if (interval.length() > 0) {
+					conflate(ctx, interval);
+				}
 			} else {
 				rawInst = path;
 			}
@@ -100,12 +125,16 @@ public class TextWebSocketFrameHandler extends SimpleChannelInboundHandler<TextW
             // Duplicated subscription
             svrCtx.LOG.warning("Client subscribe duplicated instrument, " + inst);
         } else {
-            // Subscribe
+            // Subscribe and send initial history data off the event loop,
+            // live data is sent after history
+			Result r = svrCtx.subscribers.subscribeWithHistory(inst, ctx.channel(), numberCandle);
+			if (r.equals(Result.Error)) {
+				// Not recorded, so client may retry
+				svrCtx.subscribers.sendSubscriptionError(inst, r.Message, ctx.channel());
+				svrCtx.LOG.warning("Client subscribe failed, " + inst + ", " + r.Message + ", " + ctx.channel());
+				return;
+			}
             svrCtx.addInstrument(ctx.channel(), inst);
-			svrCtx.subscribers.subscribe(inst, ctx.channel());
-
-            // Send initial history data
-			svrCtx.subscribers.sendHistoryData(inst, ctx.channel(), numberCandle);
 
             // Log info
             svrCtx.LOG.info("Client joins subscription pool, " + inst + ", " + ctx.channel());
@@ -121,6 +150,18 @@ public class TextWebSocketFrameHandler extends SimpleChannelInboundHandler<TextW
         svrCtx.LOG.info("Remove client from subscription pool, " + inst + ", " + ctx.channel());
     }
 
+	protected void conflate(ChannelHandlerContext ctx, String value) {
+		long millis = HQConflator.parseInterval(value);
+		if (millis < 0) {
+			svrCtx.LOG.warning("Client requests invalid conflation, " + value + ", " + ctx.channel());
+			return;
+		}
+		svrCtx.subscribers.conflator.interval(ctx.channel(), millis);
+
+		// Log info
+		svrCtx.LOG.info("Conflate ticks every " + millis + "ms, " + ctx.channel());
+	}
+
 	protected void sendDominantInstrument(ChannelHandlerContext ctx, String pid) {
 		String inst = svrCtx.subscribers.sendDominantInstrument(pid, ctx.channel());
 
@@ -147,6 +188,11 @@ public class TextWebSocketFrameHandler extends SimpleChannelInboundHandler<TextW
 			String text = msg.text();
 			JSONObject o = new JSONObject(text);
 
+			// Conflation applies to the channel, also without instruments
+			if (o.has(conflate)) {
+				conflate(ctx, o.get(conflate).toString());
+			}
+
 			// Parse un/subscription
 			JSONArray arr = o.getJSONArray(DataTag);
 			if (arr.length() < 1) {
@@ -178,13 +224,21 @@ public class TextWebSocketFrameHandler extends SimpleChannelInboundHandler<TextW
 		svrCtx.LOG.warning("WebSocket error. " + ctx.channel() + ", " + cause.getMessage());
 	}
 
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		// Send live data conflated while channel was not writable
+		svrCtx.subscribers.slowConsumers.writabilityChanged(ctx.channel());
+		super.channelWritabilityChanged(ctx);
+	}
+
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         // Remove bundle
         svrCtx.removeChannel(ctx.channel());
+        svrCtx.subscribers.slowConsumers.remove(ctx.channel());
 
 		// Don't need to un-subscribe instruments when Channel is closed.
-		// The ChannelGroup will manage the closed channels.
+		// Subscriptions are removed when Channel is closed.
 		svrCtx.LOG.info("Disconnect " + ctx.channel());
 	}
 }
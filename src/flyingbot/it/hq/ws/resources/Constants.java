@@ -13,8 +13,11 @@ public class Constants {
     // JSON type field, marking the data is historical
     public final static String OldCandleType = "OldCandle";
     public final static String OldMarketDataType = "OldMarketData";
-    // LRU size
-    public final static int LRUSize = 50;
+    // Cached candles and ticks of instruments, max estimated bytes, share of instruments
+    // accessed more than once, and estimated bytes of a tick
+    public final static long Cache_MaxBytes = 512L * 1024 * 1024;
+    public final static double Cache_ProtectedRatio = 0.8;
+    public final static int Cache_MarketDataBytes = 1024;
     // Heartbeat message
     public final static String HeartbeatMsg = "{\"sequence\":0,\"type\":\"Heartbeat\",\"data\":[]}";
     // Default listening port
@@ -26,12 +29,43 @@ public class Constants {
 
     // JSON repsonse types
     public final static String DominantInstrumentType = "DominantInstrument";
+    public final static String SubscriptionErrorType = "SubscriptionError";
+    public final static String MessageTag = "Message";
+
+    // Instruments clients may register before feed sends them
+    public final static int Instruments_MaxClientIds = 4096;
 
     // Candle settings
     public final static int Candle1440_MaxNum = 240;
     public final static int Candle60_MaxNum = 1440;
     public final static int Candle15_MaxNum = 5760;
     public final static int Candle5_MaxNum = 17280;
+    public final static int Candle1_MaxNum = 65535;
+
+    // Cached candles of each instrument and period, the oldest are dropped when full
+    public final static int CandleColumns_InitCapacity = 512;
+    public final static int CandleColumns_MaxCapacity = 86400;
+
+    // Persistent candle store, directory and width of string fields
+    public final static String CandleStore_Dir = "candlestore";
+    public final static int CandleStore_AsciiWidth = 32;
+
+    // Candle DB, connections and queued loads
+    public final static int DB_PoolSize = 4;
+    public final static int DB_QueueSize = 64;
+    public final static long DB_BorrowTimeoutMillis = 5000;
+    // Connections are re-opened after life time, and validated after idle time
+    public final static long DB_MaxLifeMillis = 1000 * 60 * 60;
+    public final static long DB_ValidateIdleMillis = 1000 * 30;
+    public final static int DB_ValidateTimeoutSec = 2;
+    // Statements time out on DB side, and waiting for a queued load times out
+    public final static int DB_QueryTimeoutSec = 10;
+    public final static long DB_LoadTimeoutMillis = 30000;
+
+    // History sending, threads, queued requests and live frames held for a client
+    public final static int History_Threads = 4;
+    public final static int History_QueueSize = 1024;
+    public final static int History_MaxHeldFrames = 4096;
 
     // Candle periods
     public final static int Candle_1440m = 1440;
@@ -40,6 +74,36 @@ public class Constants {
     public final static int Candle_5m = 5;
     public final static int Candle_1m = 1;
 
+    // Derive higher periods from 1m candles. Off by default, it breaks compatibility with
+    // upstream candles: upstream candles of derived periods are ignored, and serial numbers of
+    // derived candles are trading day followed by 4 digits of minutes, e.g. 201810100315,
+    // instead of those of upstream and DB
+    public final static boolean Candle_DeriveEnabled = false;
+    // Periods derived from 1m candles if enabled
+    public final static int[] Candle_DerivedPeriods = {Candle_5m, Candle_15m, Candle_60m, Candle_1440m};
+    // Trading day starts the evening before, 18:00, so night session comes first
+    public final static int TradingDay_StartMinute = 18 * 60;
+    // 1m candles of a trading day with night session
+    public final static int TradingDay_Minutes = 555;
+    // Max 1m candles of a DB query when deriving older candles, a page holds days of 1m candles
+    public final static int CandleDerive_PageSize = 10 * TradingDay_Minutes;
+
+    // 1m candles built from ticks, off, as primary source instead of upstream candles,
+    // as fallback when upstream candles stop, or compared with upstream candles
+    public final static int TickCandle_Off = 0;
+    public final static int TickCandle_Primary = 1;
+    public final static int TickCandle_Fallback = 2;
+    public final static int TickCandle_Compare = 3;
+    public final static int TickCandle_Mode = TickCandle_Off;
+    // Min interval between updates of an unfinished candle
+    public final static long TickCandle_UpdateMillis = 1000;
+    // Upstream candles of instrument stop for this time, tick candles are sent in fallback mode
+    public final static long TickCandle_FallbackMillis = 1000 * 90;
+    // Session closes, ticks at close time belong to the minute before
+    public final static String[] Session_Closes = {"10:15", "11:30", "15:00", "15:15", "23:00", "01:00", "02:30"};
+    // Sessions opening with call auction, ticks of the minute before belong to the open minute
+    public final static String[] Session_AuctionOpens = {"21:00", "09:00"};
+
     // Query MD number, will send the number of MDs to clients
     public final static int MarketDataToClient_Num = 10;
     // Default cached market data number
@@ -47,6 +111,13 @@ public class Constants {
 
     // URL parameter
     public final static String candleNum = "candlenumber";
+    // URL parameter and subscription JSON field, interval of latest-value ticks, e.g. 250ms
+    public final static String conflate = "conflate";
+
+    // Conflated ticks, interval bounds and timer wheel tick (ms)
+    public final static long Conflate_MinMillis = 10;
+    public final static long Conflate_MaxMillis = 1000 * 60;
+    public final static long Conflate_TimerTickMillis = 10;
 
     // Null subscription
     public final static String NullInstrument = "x0";
@@ -57,6 +128,18 @@ public class Constants {
     // URI
     public final static String wsURI = "/hqws";
     public final static String subProtocol = "flyingbot_hq_json_ws";
+    public final static String binSubProtocol = "flyingbot_hq_bin_ws";
+
+    // permessage-deflate, messages smaller than threshold (bytes) are not compressed
+    public final static int Deflate_Threshold = 1024;
+    public final static int Deflate_Level = 6;
+
+    // Max bytes of cached history messages
+    public final static long Snapshot_MaxBytes = 64L * 1024 * 1024;
+
+    // Client protocols
+    public final static int Protocol_Json = 0;
+    public final static int Protocol_Binary = 1;
 
     // URI key
     public final static String URIKey = "client.ws.URI";
@@ -67,14 +150,57 @@ public class Constants {
     // Incoming charset
     public final static String WsIncomingCharset = "UTF-8";
 
+    // Flush consolidation, flush after max flushes of channel, or after the writes already
+    // queued on event loop
+    public final static int WsFlush_MaxFlushes = 64;
+
+    // Outbound buffer of channel, not writable above high mark until below low mark
+    public final static int WsWrite_LowWaterMark = 256 * 1024;
+    public final static int WsWrite_HighWaterMark = 1024 * 1024;
+    // Live data to channel not writable, conflated to the latest, dropped, or dropped and
+    // channel is closed if it stays not writable
+    public final static int SlowConsumer_Conflate = 0;
+    public final static int SlowConsumer_Drop = 1;
+    public final static int SlowConsumer_Disconnect = 2;
+    public final static int SlowConsumer_Policy = SlowConsumer_Conflate;
+    public final static long SlowConsumer_DisconnectMillis = 1000 * 30;
+
     // HTTP max content
     public final static int HTTP_MaxContentLength = 64 * 1024;
 
+    // Inside feed frame, 4-byte big-endian length prefix and payload
+    public final static int Inside_LengthFieldSize = 4;
+    public final static int Inside_MaxFrameLength = 16 * 1024 * 1024;
+
+    // Inside feed IO threads, shared by all feeders
+    public final static int Inside_WorkerThreads = 2;
+    // Dispatch threads, data of an instrument is processed on one of them, and queued data of each
+    // before feeders stop reading, they read again when all queues are half drained
+    public final static int Dispatch_Shards = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public final static int Dispatch_QueueSize = 8192;
+
+    // Binary protocol, little-endian. Hello frame starts with magic "HQB1".
+    public final static int Binary_Magic = 0x31425148;
+    public final static byte Binary_FrameSymbol = 1;
+    public final static byte Binary_FrameData = 2;
+    public final static byte Binary_TypeMarketData = 1;
+    public final static byte Binary_TypeCandle = 2;
+    public final static int Binary_NullSymbol = 0xFFFF;
+    public final static byte Binary_FlagHistory = 1;
+
     // Configuration tags
     public final static String ConfigTag_URL = "URL";
     public final static String ConfigTag_User = "Username";
     public final static String ConfigTag_Pwd = "Password";
     public final static String ConfigTag_Port = "Port";
     public final static String ConfigTag_IP = "IP";
+    public final static String ConfigTag_Instruments = "Instruments";
+
+    // Startup warm-up, loading threads and queued instruments, max time before clients are accepted (ms),
+    // and file of dominant instruments saved on shutdown, in candle store directory
+    public final static int Warmup_Threads = 4;
+    public final static int Warmup_QueueSize = 256;
+    public final static long Warmup_TimeoutMillis = 1000 * 120;
+    public final static String Warmup_DominantFile = "dominant.json";
 
 }
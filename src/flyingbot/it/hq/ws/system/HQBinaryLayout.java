@@ -0,0 +1,307 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+import static flyingbot.it.hq.ws.resources.Constants.Binary_TypeCandle;
+import static flyingbot.it.hq.ws.resources.Constants.Binary_TypeMarketData;
+
+/**
+ * Fixed layout of binary data records, all numbers are little-endian.
+ * <p>
+ * Layout definition, sent in hello frame,
+ * <pre>
+ * u8  type id, 1 for MarketData, 2 for Candle
+ * u16 field number
+ * for each field,
+ *     u8 kind, u8 width, u8 name length, name in UTF-8
+ * </pre>
+ * Field kinds and their sizes in record,
+ * <li>'D' double, 8 bytes
+ * <li>'J' long, 8 bytes
+ * <li>'I' int, 4 bytes
+ * <li>'Z' boolean, 1 byte
+ * <li>'Y' symbol, 2 bytes, id of a string defined in symbol frame
+ * <li>'A' ASCII, width bytes, padded with zero
+ * <p>
+ * Fields are matched to data class by name, unknown fields are skipped.
+ */
+public class HQBinaryLayout {
+    // Field kinds
+    public final static byte Kind_Double = 'D';
+    public final static byte Kind_Long = 'J';
+    public final static byte Kind_Int = 'I';
+    public final static byte Kind_Boolean = 'Z';
+    public final static byte Kind_Symbol = 'Y';
+    public final static byte Kind_Ascii = 'A';
+
+    // Data type
+    byte typeId;
+    HQDataSchema schema;
+
+    // Fields, same index
+    byte[] kinds;
+    int[] widths;
+    int[] offsets;
+    String[] names;
+
+    // Schema field index, -1 if data class doesn't have the field
+    int[] fields;
+
+    // Bytes of one record
+    int recordSize;
+
+    protected HQBinaryLayout(byte typeId, byte[] kinds, int[] widths, String[] names) {
+        this.typeId = typeId;
+        this.schema = schemaOf(typeId);
+        this.kinds = kinds;
+        this.widths = widths;
+        this.names = names;
+        this.offsets = new int[kinds.length];
+        this.fields = new int[kinds.length];
+
+        for (int f = 0; f < kinds.length; ++f) {
+            offsets[f] = recordSize;
+            recordSize += sizeOf(kinds[f], widths[f]);
+
+            int i = schema.indexOf(names[f]);
+            fields[f] = compatible(kinds[f], i < 0 ? -1 : schema.kind(i)) ? i : -1;
+        }
+    }
+
+    /**
+     * Create layout of all schema fields for the data type, strings are symbols.
+     *
+     * @param typeId data type id
+     * @return layout
+     */
+    public static HQBinaryLayout of(byte typeId) {
+        return of(typeId, 0);
+    }
+
+    /**
+     * Create layout of all schema fields for the data type.
+     *
+     * @param typeId     data type id
+     * @param asciiWidth width of string fields in ASCII, 0 for symbols
+     * @return layout
+     */
+    public static HQBinaryLayout of(byte typeId, int asciiWidth) {
+        HQDataSchema s = schemaOf(typeId);
+        byte[] kinds = new byte[s.size()];
+        int[] widths = new int[s.size()];
+        String[] names = new String[s.size()];
+        for (int i = 0; i < kinds.length; ++i) {
+            names[i] = s.name(i);
+            switch (s.kind(i)) {
+            case HQDataSchema.Kind_String:
+                kinds[i] = asciiWidth > 0 ? Kind_Ascii : Kind_Symbol;
+                widths[i] = asciiWidth;
+                break;
+            case HQDataSchema.Kind_Int:
+                kinds[i] = Kind_Int;
+                break;
+            case HQDataSchema.Kind_Long:
+                kinds[i] = Kind_Long;
+                break;
+            case HQDataSchema.Kind_Boolean:
+                kinds[i] = Kind_Boolean;
+                break;
+            default:
+                kinds[i] = Kind_Double;
+            }
+        }
+        return new HQBinaryLayout(typeId, kinds, widths, names);
+    }
+
+    /**
+     * Read layout definition.
+     *
+     * @param in buffer at the start of definition
+     * @return layout
+     * @throws IllegalArgumentException if definition is invalid
+     */
+    public static HQBinaryLayout read(ByteBuf in) {
+        byte typeId = in.readByte();
+        int n = in.readUnsignedShortLE();
+
+        byte[] kinds = new byte[n];
+        int[] widths = new int[n];
+        String[] names = new String[n];
+        for (int f = 0; f < n; ++f) {
+            kinds[f] = in.readByte();
+            widths[f] = in.readUnsignedByte();
+            names[f] = in.readCharSequence(in.readUnsignedByte(), StandardCharsets.UTF_8).toString();
+
+            // Check kind
+            sizeOf(kinds[f], widths[f]);
+        }
+        return new HQBinaryLayout(typeId, kinds, widths, names);
+    }
+
+    /**
+     * Write layout definition.
+     *
+     * @param out buffer
+     */
+    public void write(ByteBuf out) {
+        out.writeByte(typeId);
+        out.writeShortLE(kinds.length);
+        for (int f = 0; f < kinds.length; ++f) {
+            byte[] name = names[f].getBytes(StandardCharsets.UTF_8);
+            out.writeByte(kinds[f]);
+            out.writeByte(widths[f]);
+            out.writeByte(name.length);
+            out.writeBytes(name);
+        }
+    }
+
+    /**
+     * Write record at index, fields of symbol kind are not supported.
+     *
+     * @param buf buffer
+     * @param off index of record
+     * @param d   data object
+     */
+    public void writeRecord(ByteBuf buf, int off, Object d) {
+        for (int f = 0; f < kinds.length; ++f) {
+            int i = fields[f];
+            int at = off + offsets[f];
+            switch (kinds[f]) {
+            case Kind_Double:
+                buf.setDoubleLE(at, i < 0 ? 0 : schema.getDouble(d, i));
+                break;
+            case Kind_Long:
+                buf.setLongLE(at, i < 0 ? 0 : schema.getLong(d, i));
+                break;
+            case Kind_Int:
+                buf.setIntLE(at, i < 0 ? 0 : (int) schema.getLong(d, i));
+                break;
+            case Kind_Boolean:
+                buf.setByte(at, i >= 0 && schema.getBoolean(d, i) ? 1 : 0);
+                break;
+            case Kind_Ascii:
+                String str = i < 0 ? null : schema.getString(d, i);
+                int len = str == null ? 0 : Math.min(str.length(), widths[f]);
+                for (int k = 0; k < widths[f]; ++k) {
+                    buf.setByte(at + k, k < len ? str.charAt(k) : 0);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported binary field kind, " + kinds[f]);
+            }
+        }
+    }
+
+    /**
+     * Read record at index, fields of symbol kind are not supported.
+     *
+     * @param buf buffer
+     * @param off index of record
+     * @return data object
+     */
+    public Object readRecord(ByteBuf buf, int off) {
+        Object o = schema.newInstance();
+        for (int f = 0; f < kinds.length; ++f) {
+            int i = fields[f];
+            if (i < 0) {
+                continue;
+            }
+
+            int at = off + offsets[f];
+            switch (kinds[f]) {
+            case Kind_Double:
+                setNumber(o, i, buf.getDoubleLE(at));
+                break;
+            case Kind_Long:
+                setNumber(o, i, buf.getLongLE(at));
+                break;
+            case Kind_Int:
+                setNumber(o, i, buf.getIntLE(at));
+                break;
+            case Kind_Boolean:
+                schema.setBoolean(o, i, buf.getByte(at) != 0);
+                break;
+            case Kind_Ascii:
+                int nul = buf.indexOf(at, at + widths[f], (byte) 0);
+                int len = nul < 0 ? widths[f] : nul - at;
+                schema.setString(o, i, buf.toString(at, len, StandardCharsets.ISO_8859_1));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported binary field kind, " + kinds[f]);
+            }
+        }
+        return o;
+    }
+
+    protected void setNumber(Object o, int i, double v) {
+        if (schema.kind(i) == HQDataSchema.Kind_Double) {
+            schema.setDouble(o, i, v);
+        } else {
+            schema.setLong(o, i, (long) v);
+        }
+    }
+
+    protected void setNumber(Object o, int i, long v) {
+        if (schema.kind(i) == HQDataSchema.Kind_Double) {
+            schema.setDouble(o, i, v);
+        } else {
+            schema.setLong(o, i, v);
+        }
+    }
+
+    public static HQDataSchema schemaOf(byte typeId) {
+        switch (typeId) {
+        case Binary_TypeMarketData:
+            return HQDataSchema.of(MarketData.class);
+        case Binary_TypeCandle:
+            return HQDataSchema.of(Candle.class);
+        default:
+            throw new IllegalArgumentException("Unknown binary data type, " + typeId);
+        }
+    }
+
+    protected static int sizeOf(byte kind, int width) {
+        switch (kind) {
+        case Kind_Double:
+        case Kind_Long:
+            return 8;
+        case Kind_Int:
+            return 4;
+        case Kind_Boolean:
+            return 1;
+        case Kind_Symbol:
+            return 2;
+        case Kind_Ascii:
+            return width;
+        default:
+            throw new IllegalArgumentException("Unknown binary field kind, " + kind);
+        }
+    }
+
+    protected static boolean compatible(byte kind, int schemaKind) {
+        switch (schemaKind) {
+        case HQDataSchema.Kind_String:
+            return kind == Kind_Symbol || kind == Kind_Ascii;
+        case HQDataSchema.Kind_Int:
+        case HQDataSchema.Kind_Long:
+        case HQDataSchema.Kind_Double:
+            return kind == Kind_Double || kind == Kind_Long || kind == Kind_Int;
+        case HQDataSchema.Kind_Boolean:
+            return kind == Kind_Boolean;
+        default:
+            return false;
+        }
+    }
+
+    public byte typeId() {
+        return typeId;
+    }
+
+    public int recordSize() {
+        return recordSize;
+    }
+}
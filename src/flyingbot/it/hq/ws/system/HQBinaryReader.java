@@ -0,0 +1,286 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.util.Result;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Decoder of binary inside feed, one instance per session.
+ * <p>
+ * A feeder switches its session to binary by sending hello frame first, the
+ * server replies the 4-byte magic to accept. Frames, after length prefix,
+ * <pre>
+ * Hello:  u32 magic "HQB1", u8 layout number, layouts, see {@link HQBinaryLayout}
+ * Symbol: u8 1, u16 symbol id, u8 length, string in UTF-8
+ * Data:   u8 2, u8 type id, u16 record number, fixed-size records
+ * </pre>
+ * Symbols are defined once per session, e.g. instrument id, and referenced by
+ * id in records. Records are decoded straight into {@link MarketData} and
+ * {@link Candle}. A symbol of instrument id is resolved to the sink's instrument
+ * id once, records of the symbol reuse it.
+ */
+public class HQBinaryReader {
+    // Layouts by type id
+    HQBinaryLayout[] layouts;
+
+    // Session symbols by id
+    String[] symbols;
+
+    // Instrument ids of sink by symbol id, -1 if not resolved yet
+    int[] symbolInsts;
+
+    // Layout field of instrument id in symbol kind by type id, -1 if none
+    int[] instFields;
+
+    // Last decoded ASCII string of each field, by type id
+    byte[][][] lastBytes;
+    String[][] lastStrings;
+
+    // Scratch for ASCII fields
+    byte[] scratch;
+
+    public HQBinaryReader() {
+        layouts = new HQBinaryLayout[Binary_TypeCandle + 1];
+        symbols = new String[256];
+        symbolInsts = new int[256];
+        Arrays.fill(symbolInsts, -1);
+        instFields = new int[layouts.length];
+        Arrays.fill(instFields, -1);
+        lastBytes = new byte[layouts.length][][];
+        lastStrings = new String[layouts.length][];
+        scratch = new byte[256];
+    }
+
+    /**
+     * Test if frame is binary. JSON frames start with '[', '{' or white space.
+     *
+     * @param frame frame without length prefix
+     * @return true if it is binary frame
+     */
+    public static boolean isBinary(ByteBuf frame) {
+        if (frame.readableBytes() >= 4 && frame.getIntLE(frame.readerIndex()) == Binary_Magic) {
+            return true;
+        }
+
+        byte b = frame.getByte(frame.readerIndex());
+        return b == Binary_FrameSymbol || b == Binary_FrameData;
+    }
+
+    public boolean hasHello() {
+        return layouts[Binary_TypeMarketData] != null || layouts[Binary_TypeCandle] != null;
+    }
+
+    /**
+     * Read frame and send decoded data to sink.
+     *
+     * @param in   frame without length prefix
+     * @param sink receiver of decoded data
+     * @return result, the last error if any record failed
+     * @throws IllegalArgumentException if frame is malformed
+     * @throws IndexOutOfBoundsException if frame is truncated
+     */
+    public Result read(ByteBuf in, HQDataSink sink) {
+        if (in.readableBytes() >= 4 && in.getIntLE(in.readerIndex()) == Binary_Magic) {
+            in.skipBytes(4);
+            hello(in);
+            return new Result();
+        }
+
+        if (!hasHello()) {
+            throw new IllegalArgumentException("Binary frame before hello");
+        }
+
+        byte frameType = in.readByte();
+        switch (frameType) {
+        case Binary_FrameSymbol:
+            symbol(in);
+            return new Result();
+        case Binary_FrameData:
+            return records(in, sink);
+        default:
+            throw new IllegalArgumentException("Unknown binary frame, " + frameType);
+        }
+    }
+
+    protected void hello(ByteBuf in) {
+        int n = in.readUnsignedByte();
+        for (int i = 0; i < n; ++i) {
+            HQBinaryLayout l = HQBinaryLayout.read(in);
+            layouts[l.typeId] = l;
+            lastBytes[l.typeId] = new byte[l.kinds.length][];
+            lastStrings[l.typeId] = new String[l.kinds.length];
+
+            instFields[l.typeId] = -1;
+            for (int f = 0; f < l.kinds.length; ++f) {
+                if (l.kinds[f] == HQBinaryLayout.Kind_Symbol && InstrumentIDTag.equals(l.names[f])) {
+                    instFields[l.typeId] = f;
+                }
+            }
+        }
+    }
+
+    protected void symbol(ByteBuf in) {
+        int id = in.readUnsignedShortLE();
+        int len = in.readUnsignedByte();
+        if (id == Binary_NullSymbol) {
+            throw new IllegalArgumentException("Symbol id is reserved, " + id);
+        }
+
+        if (id >= symbols.length) {
+            int old = symbols.length;
+            symbols = Arrays.copyOf(symbols, Math.max(id + 1, old * 2));
+            symbolInsts = Arrays.copyOf(symbolInsts, symbols.length);
+            Arrays.fill(symbolInsts, old, symbols.length, -1);
+        }
+        symbols[id] = in.readCharSequence(len, StandardCharsets.UTF_8).toString();
+        symbolInsts[id] = -1;
+    }
+
+    protected Result records(ByteBuf in, HQDataSink sink) {
+        byte typeId = in.readByte();
+        int n = in.readUnsignedShortLE();
+
+        HQBinaryLayout l = typeId > 0 && typeId < layouts.length ? layouts[typeId] : null;
+        if (l == null) {
+            return new Result(Result.Error, -1, "Unknown market data type, " + typeId);
+        }
+        if (in.readableBytes() != n * l.recordSize) {
+            throw new IllegalArgumentException("Data frame size mismatch, expected "
+                    + n * l.recordSize + ", got " + in.readableBytes());
+        }
+
+        Result res = new Result();
+        int base = in.readerIndex();
+        for (int r = 0; r < n; ++r, base += l.recordSize) {
+            Object o = decode(l, in, base);
+            Result x;
+            if (typeId == Binary_TypeMarketData) {
+                MarketData md = (MarketData) o;
+                x = sink.onMarketData(instrumentOf(l, in, base, md.InstrumentID, sink), md);
+            } else {
+                Candle c = (Candle) o;
+                x = sink.onCandle(instrumentOf(l, in, base, c.InstrumentID, sink), c);
+            }
+            if (x.equals(Result.Error)) {
+                res = x;
+            }
+        }
+        in.skipBytes(n * l.recordSize);
+        return res;
+    }
+
+    /**
+     * Get instrument id of record, by symbol if instrument id is a symbol field.
+     */
+    protected int instrumentOf(HQBinaryLayout l, ByteBuf in, int base, String inst, HQDataSink sink) {
+        int f = instFields[l.typeId];
+        if (f < 0 || inst == null) {
+            return sink.instrumentId(inst);
+        }
+
+        int sym = in.getUnsignedShortLE(base + l.offsets[f]);
+        if (symbolInsts[sym] < 0) {
+            symbolInsts[sym] = sink.instrumentId(inst);
+        }
+        return symbolInsts[sym];
+    }
+
+    protected Object decode(HQBinaryLayout l, ByteBuf in, int base) {
+        HQDataSchema s = l.schema;
+        Object o = s.newInstance();
+
+        for (int f = 0; f < l.kinds.length; ++f) {
+            int i = l.fields[f];
+            if (i < 0) {
+                continue;
+            }
+
+            int off = base + l.offsets[f];
+            switch (l.kinds[f]) {
+            case HQBinaryLayout.Kind_Double:
+                setNumber(s, o, i, in.getDoubleLE(off));
+                break;
+            case HQBinaryLayout.Kind_Long:
+                setNumber(s, o, i, in.getLongLE(off));
+                break;
+            case HQBinaryLayout.Kind_Int:
+                setNumber(s, o, i, in.getIntLE(off));
+                break;
+            case HQBinaryLayout.Kind_Boolean:
+                s.setBoolean(o, i, in.getByte(off) != 0);
+                break;
+            case HQBinaryLayout.Kind_Symbol:
+                s.setString(o, i, symbol(in.getUnsignedShortLE(off)));
+                break;
+            case HQBinaryLayout.Kind_Ascii:
+                s.setString(o, i, ascii(l, f, in, off));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown binary field kind, " + l.kinds[f]);
+            }
+        }
+        return o;
+    }
+
+    protected void setNumber(HQDataSchema s, Object o, int i, double v) {
+        if (s.kind(i) == HQDataSchema.Kind_Double) {
+            s.setDouble(o, i, v);
+        } else {
+            s.setLong(o, i, (long) v);
+        }
+    }
+
+    protected void setNumber(HQDataSchema s, Object o, int i, long v) {
+        if (s.kind(i) == HQDataSchema.Kind_Double) {
+            s.setDouble(o, i, v);
+        } else {
+            s.setLong(o, i, v);
+        }
+    }
+
+    protected String symbol(int id) {
+        if (id == Binary_NullSymbol) {
+            return null;
+        }
+        if (id >= symbols.length || symbols[id] == null) {
+            throw new IllegalArgumentException("Undefined symbol, " + id);
+        }
+        return symbols[id];
+    }
+
+    /**
+     * Decode zero-padded ASCII field, reuse the last string if bytes are the same.
+     */
+    protected String ascii(HQBinaryLayout l, int f, ByteBuf in, int off) {
+        int len = l.widths[f];
+        int nul = in.indexOf(off, off + len, (byte) 0);
+        if (nul >= 0) {
+            len = nul - off;
+        }
+
+        byte[] last = lastBytes[l.typeId][f];
+        if (last != null && last.length == len) {
+            int k = 0;
+            while (k < len && in.getByte(off + k) == last[k]) {
+                ++k;
+            }
+            if (k == len) {
+                return lastStrings[l.typeId][f];
+            }
+        }
+
+        if (scratch.length < len) {
+            scratch = new byte[len];
+        }
+        in.getBytes(off, scratch, 0, len);
+        lastBytes[l.typeId][f] = Arrays.copyOf(scratch, len);
+        lastStrings[l.typeId][f] = new String(scratch, 0, len, StandardCharsets.ISO_8859_1);
+        return lastStrings[l.typeId][f];
+    }
+}
@@ -0,0 +1,245 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.data.hq.TransferredData;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Encoder of binary WebSocket messages for subprotocol flyingbot_hq_bin_ws,
+ * all numbers are little-endian.
+ * <p>
+ * Schema message is sent once after handshake, the layouts of records,
+ * <pre>
+ * u32 magic "HQB1", u8 layout number, layouts, see {@link HQBinaryLayout}
+ * </pre>
+ * Data message,
+ * <pre>
+ * u8  2
+ * u8  type id, 1 for MarketData, 2 for Candle
+ * u8  flags, bit 0 marks historical data (OldMarketData, OldCandle)
+ * i64 sequence
+ * u16 symbol number, then symbols: u8 length, string in UTF-8
+ * u16 record number, then fixed-size records
+ * </pre>
+ * Symbol id in record is the index in symbols of the same message, so messages
+ * are self-contained and encoded once for all binary clients.
+ */
+public class HQBinaryWriter {
+    // Estimated bytes per symbol
+    private final static int EstimatedSymbolSize = 16;
+
+    // Frame type, type id, flags and sequence
+    private final static int HeadSize = 11;
+
+    // Symbol length is u8
+    private final static int MaxSymbolBytes = 255;
+
+    // Symbol and record counts are u16, symbol id 0xFFFF is null
+    private final static int MaxSymbols = Binary_NullSymbol;
+    private final static int MaxRecords = 0xFFFF;
+
+    // Buffer allocator
+    ByteBufAllocator alloc;
+
+    // Layouts by type id
+    HQBinaryLayout mdLayout, cndLayout;
+
+    public HQBinaryWriter(ByteBufAllocator alloc) {
+        this.alloc = alloc;
+        this.mdLayout = HQBinaryLayout.of(Binary_TypeMarketData);
+        this.cndLayout = HQBinaryLayout.of(Binary_TypeCandle);
+    }
+
+    /**
+     * Write schema message.
+     *
+     * @return encoded message, caller owns the buffer
+     */
+    public ByteBuf writeSchema() {
+        ByteBuf buf = alloc.buffer();
+        buf.writeIntLE(Binary_Magic);
+        buf.writeByte(2);
+        mdLayout.write(buf);
+        cndLayout.write(buf);
+        return buf;
+    }
+
+    /**
+     * Write single data object.
+     *
+     * @param type     JSON message type, e.g. MarketData, OldCandle
+     * @param sequence message sequence
+     * @param d        data
+     * @return encoded message, caller owns the buffer
+     */
+    public ByteBuf write(String type, long sequence, TransferredData<?> d) {
+        return write(type, sequence, Collections.singletonList(d));
+    }
+
+    /**
+     * Write data objects, in the iteration order of collection.
+     *
+     * @param type     JSON message type, e.g. MarketData, OldCandle
+     * @param sequence message sequence
+     * @param data     data objects
+     * @return encoded message, caller owns the buffer
+     */
+    public ByteBuf write(String type, long sequence, Collection<? extends TransferredData<?>> data) {
+        HQBinaryLayout l = layoutOf(type);
+        ByteBuf buf = alloc.buffer(HeadSize + data.size() * (l.recordSize + EstimatedSymbolSize));
+        try {
+            writeHead(buf, type, sequence);
+            writeBody(buf, l, data);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Write head of message, the part having sequence. Head followed by body is
+     * the same as {@link #write(String, long, Collection)}, so a body can be
+     * encoded once and sent with a new sequence each time.
+     *
+     * @param type     JSON message type, e.g. MarketData, OldCandle
+     * @param sequence message sequence
+     * @return encoded head, caller owns the buffer
+     */
+    public ByteBuf writeHead(String type, long sequence) {
+        ByteBuf buf = alloc.buffer(HeadSize);
+        try {
+            writeHead(buf, type, sequence);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Write body of message, the symbols and records after head.
+     *
+     * @param type JSON message type, e.g. MarketData, OldCandle
+     * @param data data objects
+     * @return encoded body, caller owns the buffer
+     */
+    public ByteBuf writeBody(String type, Collection<? extends TransferredData<?>> data) {
+        HQBinaryLayout l = layoutOf(type);
+        ByteBuf buf = alloc.buffer(data.size() * (l.recordSize + EstimatedSymbolSize));
+        try {
+            writeBody(buf, l, data);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    protected void writeHead(ByteBuf buf, String type, long sequence) {
+        buf.writeByte(Binary_FrameData);
+        buf.writeByte(layoutOf(type).typeId);
+        buf.writeByte(flagsOf(type));
+        buf.writeLongLE(sequence);
+    }
+
+    protected HQBinaryLayout layoutOf(String type) {
+        switch (type) {
+        case OldMarketDataType:
+        case MarketData.DataType:
+            return mdLayout;
+        case OldCandleType:
+        case Candle.DataType:
+            return cndLayout;
+        default:
+            throw new IllegalArgumentException("No binary type for " + type);
+        }
+    }
+
+    protected byte flagsOf(String type) {
+        switch (type) {
+        case OldMarketDataType:
+        case OldCandleType:
+            return Binary_FlagHistory;
+        default:
+            return 0;
+        }
+    }
+
+    protected void writeBody(ByteBuf buf, HQBinaryLayout l, Collection<? extends TransferredData<?>> data) {
+        // Collect message symbols, value is symbol id
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        for (TransferredData<?> d : data) {
+            for (int f = 0; f < l.kinds.length; ++f) {
+                if (l.kinds[f] == HQBinaryLayout.Kind_Symbol) {
+                    String s = l.schema.getString(d, l.fields[f]);
+                    if (s != null && !symbols.containsKey(s)) {
+                        symbols.put(s, symbols.size());
+                    }
+                }
+            }
+        }
+
+        // Counts don't fit, client would misread the rest
+        if (data.size() > MaxRecords) {
+            throw new IllegalArgumentException("More than " + MaxRecords + " records, " + data.size());
+        }
+        if (symbols.size() > MaxSymbols) {
+            throw new IllegalArgumentException("More than " + MaxSymbols + " symbols, " + symbols.size());
+        }
+
+        // Symbols
+        buf.writeShortLE(symbols.size());
+        for (String s : symbols.keySet()) {
+            int len = ByteBufUtil.utf8Bytes(s);
+            if (len > MaxSymbolBytes) {
+                throw new IllegalArgumentException("Symbol longer than " + MaxSymbolBytes + " bytes, " + s);
+            }
+            buf.writeByte(len);
+            ByteBufUtil.writeUtf8(buf, s);
+        }
+
+        // Records
+        buf.writeShortLE(data.size());
+        for (TransferredData<?> d : data) {
+            writeRecord(buf, l, d, symbols);
+        }
+    }
+
+    protected void writeRecord(ByteBuf buf, HQBinaryLayout l, Object d, Map<String, Integer> symbols) {
+        HQDataSchema s = l.schema;
+        for (int f = 0; f < l.kinds.length; ++f) {
+            int i = l.fields[f];
+            switch (l.kinds[f]) {
+            case HQBinaryLayout.Kind_Double:
+                buf.writeDoubleLE(s.getDouble(d, i));
+                break;
+            case HQBinaryLayout.Kind_Long:
+                buf.writeLongLE(s.getLong(d, i));
+                break;
+            case HQBinaryLayout.Kind_Int:
+                buf.writeIntLE((int) s.getLong(d, i));
+                break;
+            case HQBinaryLayout.Kind_Boolean:
+                buf.writeByte(s.getBoolean(d, i) ? 1 : 0);
+                break;
+            case HQBinaryLayout.Kind_Symbol:
+                String str = s.getString(d, i);
+                buf.writeShortLE(str == null ? Binary_NullSymbol : symbols.get(str));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported binary field kind, " + l.kinds[f]);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Derive candles of higher periods from 1m candles.
+ * <p>
+ * A 1m candle falls into the bucket of its trading day and update time. Intraday
+ * buckets are aligned to the clock, e.g. 09:00, 09:15, and minutes are counted
+ * from the start of trading day, {@code TradingDay_StartMinute}, so the
+ * night session, also after midnight, comes before the day session of the same
+ * trading day. A 1440m bucket is the whole trading day.
+ * <p>
+ * Derived candle has the open of the first 1m candle, the high and low of all,
+ * the sum of volumes, and other fields of the last one. Its serial number is
+ * the bucket, so a candle derived from live and loaded 1m candles is the same.
+ * <p>
+ * The serial numbers are not those of upstream candles of the same periods, so
+ * deriving replaces upstream candles, see {@code Candle_DeriveEnabled}.
+ */
+public class HQCandleAggregator {
+    // Candle fields
+    HQDataSchema schema;
+    int openField, highField, lowField, volumeField;
+    int periodField, serialField, dayField, timeField;
+
+    // Derived periods in minutes
+    int[] periods;
+
+    public HQCandleAggregator(int[] periods) {
+        this.schema = HQDataSchema.of(Candle.class);
+        this.openField = fieldOf("OpenPrice");
+        this.highField = fieldOf("HighPrice");
+        this.lowField = fieldOf("LowPrice");
+        this.volumeField = fieldOf("Volume");
+        this.periodField = fieldOf("Period");
+        this.serialField = fieldOf(HQCandleColumns.KeyField);
+        this.dayField = fieldOf("TradingDay");
+        this.timeField = fieldOf("UpdateTime");
+        if (schema.kind(dayField) != HQDataSchema.Kind_String || schema.kind(timeField) != HQDataSchema.Kind_String) {
+            throw new IllegalStateException("Candle has no string trading day and update time");
+        }
+        this.periods = periods.clone();
+    }
+
+    protected int fieldOf(String name) {
+        int f = schema.indexOf(name);
+        if (f < 0) {
+            throw new IllegalStateException("Candle has no field " + name);
+        }
+        return f;
+    }
+
+    public int[] periods() {
+        return periods;
+    }
+
+    public boolean isDerived(int period) {
+        for (int p : periods) {
+            if (p == period) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serial number of the bucket, ordered by time.
+     *
+     * @param tradingDay trading day, e.g. 20181010
+     * @param updateTime update time of 1m candle, e.g. 21:05:00
+     * @param period     candle period in minutes
+     * @return trading day followed by 4 digits of minutes from the start of trading day
+     */
+    public static long bucketOf(String tradingDay, String updateTime, int period) {
+        return bucketOf(digits(tradingDay), minuteOf(updateTime), period);
+    }
+
+    /**
+     * Serial number of the bucket.
+     *
+     * @param day    trading day as number
+     * @param minute minute of day
+     * @param period candle period in minutes
+     */
+    public static long bucketOf(long day, int minute, int period) {
+        if (period >= Candle_1440m) {
+            return day * 10000;
+        }
+
+        minute -= minute % period;
+        return day * 10000 + (minute - TradingDay_StartMinute + 1440) % 1440;
+    }
+
+    /**
+     * Derive candle of the newest bucket.
+     *
+     * @param m1     1m candles
+     * @param period candle period in minutes
+     * @return derived candle, or null if no 1m candle
+     */
+    public Candle deriveLast(HQCandleColumns m1, int period) {
+        int n = m1.size();
+        if (n < 1) {
+            return null;
+        }
+
+        // Find the first 1m candle of bucket
+        long k = bucketAt(m1, n - 1, period);
+        int from = n - 1;
+        while (from > 0 && bucketAt(m1, from - 1, period) == k) {
+            --from;
+        }
+        return derive(m1, period, k, from, n);
+    }
+
+    /**
+     * Derive candles of all buckets, older to left and newer to right.
+     *
+     * @param m1       1m candles
+     * @param period   candle period in minutes
+     * @param complete true if there are no 1m candles older than the cached ones,
+     *                 otherwise the oldest bucket may miss candles and is dropped
+     * @return derived candles
+     */
+    public List<Candle> deriveAll(HQCandleColumns m1, int period, boolean complete) {
+        List<Candle> ret = new ArrayList<>();
+        int n = m1.size(), from = 0;
+        while (from < n) {
+            long k = bucketAt(m1, from, period);
+            int to = from + 1;
+            while (to < n && bucketAt(m1, to, period) == k) {
+                ++to;
+            }
+            if (from > 0 || complete) {
+                ret.add(derive(m1, period, k, from, to));
+            }
+            from = to;
+        }
+        return ret;
+    }
+
+    /**
+     * 1m candles of the oldest bucket, older to left and newer to right.
+     *
+     * @param m1     1m candles
+     * @param period candle period in minutes
+     */
+    public List<Candle> firstBucket(HQCandleColumns m1, int period) {
+        List<Candle> ret = new ArrayList<>();
+        int n = m1.size();
+        long k = n > 0 ? bucketAt(m1, 0, period) : 0;
+        for (int i = 0; i < n && bucketAt(m1, i, period) == k; ++i) {
+            ret.add(m1.get(i));
+        }
+        return ret;
+    }
+
+    protected long bucketAt(HQCandleColumns m1, int i, int period) {
+        return bucketOf(m1.getString(dayField, i), m1.getString(timeField, i), period);
+    }
+
+    protected Candle derive(HQCandleColumns m1, int period, long bucket, int from, int to) {
+        double high = m1.getNumber(highField, from), low = m1.getNumber(lowField, from), volume = 0;
+        for (int i = from; i < to; ++i) {
+            high = Math.max(high, m1.getNumber(highField, i));
+            low = Math.min(low, m1.getNumber(lowField, i));
+            volume += m1.getNumber(volumeField, i);
+        }
+
+        // Other fields are of the last 1m candle
+        Candle c = m1.get(to - 1);
+        setNumber(c, openField, m1.getNumber(openField, from));
+        setNumber(c, highField, high);
+        setNumber(c, lowField, low);
+        setNumber(c, volumeField, volume);
+        setNumber(c, periodField, period);
+        setNumber(c, serialField, bucket);
+        schema.setString(c, timeField, m1.getString(timeField, from));
+        return c;
+    }
+
+    protected void setNumber(Candle c, int field, double v) {
+        if (schema.kind(field) == HQDataSchema.Kind_Double) {
+            schema.setDouble(c, field, v);
+        } else {
+            schema.setLong(c, field, (long) v);
+        }
+    }
+
+    protected void setNumber(Candle c, int field, long v) {
+        if (schema.kind(field) == HQDataSchema.Kind_Double) {
+            schema.setDouble(c, field, v);
+        } else {
+            schema.setLong(c, field, v);
+        }
+    }
+
+    // Digits of string as number, e.g. 2018-10-10 is 20181010
+    protected static long digits(String s) {
+        long v = 0;
+        for (int i = 0; s != null && i < s.length(); ++i) {
+            char ch = s.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                v = v * 10 + (ch - '0');
+            }
+        }
+        return v;
+    }
+
+    // Minute of day of time HH:mm[:ss], 0 if invalid
+    protected static int minuteOf(String s) {
+        int h = 0, m = 0, part = 0;
+        for (int i = 0; s != null && i < s.length() && part < 2; ++i) {
+            char ch = s.charAt(i);
+            if (ch == ':') {
+                ++part;
+            } else if (ch >= '0' && ch <= '9') {
+                if (part == 0) {
+                    h = h * 10 + (ch - '0');
+                } else {
+                    m = m * 10 + (ch - '0');
+                }
+            }
+        }
+        return (h % 24) * 60 + m % 60;
+    }
+}
@@ -0,0 +1,468 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Candles of one instrument and period, stored in columns of primitive arrays.
+ * <p>
+ * Columns are parallel arrays of a ring buffer, one column per candle field, see
+ * {@link HQDataSchema}. String fields, e.g. InstrumentID, TradingDay and UpdateTime,
+ * have few distinct values, they are stored as int codes of a dictionary shared by
+ * all columns. Candles are ordered by serial number, older to left and
+ * newer to right. Appending a new candle, or replacing the last one, is O(1).
+ * Capacity grows up to the max, then the oldest candles are overwritten.
+ * <p>
+ * Not thread-safe, caller guards access.
+ */
+public class HQCandleColumns {
+    // Field that orders candles
+    final static String KeyField = "SerialNo";
+
+    // Strings of all columns by code
+    final static Dictionary Strings = new Dictionary();
+
+    // Candle fields
+    HQDataSchema schema;
+    int keyField;
+
+    // Ring buffer, oldest candle at head
+    Columns cols;
+    int head, size;
+    int maxCapacity;
+
+    public HQCandleColumns(int initialCapacity, int maxCapacity) {
+        this.schema = HQDataSchema.of(Candle.class);
+        this.keyField = schema.indexOf(KeyField);
+        if (keyField < 0) {
+            throw new IllegalStateException("Candle has no field " + KeyField);
+        }
+
+        this.maxCapacity = maxCapacity;
+        this.cols = new Columns(schema, Math.min(initialCapacity, maxCapacity));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Estimate bytes of columns, by capacity.
+     */
+    public long estimatedBytes() {
+        long row = 0;
+        for (int f = 0; f < schema.size(); ++f) {
+            row += schema.kind(f) == HQDataSchema.Kind_String ? 4 : 8;
+        }
+        return row * cols.capacity();
+    }
+
+    /**
+     * Insert candle. A candle with the same serial number is replaced.
+     *
+     * @param c candle
+     * @return true if candles have changed
+     */
+    public boolean insert(Candle c) {
+        long k = schema.getLong(c, keyField);
+
+        // New candle, the common case
+        if (size == 0 || k > keyAt(size - 1)) {
+            if (size == cols.capacity() && !grow(size + 1)) {
+                // Full, overwrite the oldest
+                head = slot(1);
+                --size;
+            }
+            cols.write(slot(size), c);
+            ++size;
+            return true;
+        }
+
+        // Find position
+        int pos = search(k);
+        if (pos >= 0) {
+            int s = slot(pos);
+            if (cols.same(s, c)) {
+                return false;
+            }
+            cols.write(s, c);
+            return true;
+        }
+        pos = -pos - 1;
+
+        // Make room, drop the oldest if full
+        if (size == cols.capacity() && !grow(size + 1)) {
+            if (pos == 0) {
+                return false;
+            }
+            head = slot(1);
+            --size;
+            --pos;
+        }
+
+        // Shift newer candles to right
+        for (int i = size; i > pos; --i) {
+            cols.copy(cols, slot(i - 1), slot(i));
+        }
+        cols.write(slot(pos), c);
+        ++size;
+        return true;
+    }
+
+    /**
+     * Insert candles, e.g. loaded from DB. Existing candles are kept.
+     *
+     * @param candles candles in any order
+     * @return true if candles have changed
+     */
+    public boolean merge(Collection<Candle> candles) {
+        if (candles.isEmpty()) {
+            return false;
+        }
+
+        // Sort new candles
+        final List<Candle> in = new ArrayList<>(candles);
+        in.sort(new Comparator<Candle>() {
+
+            @Override
+            public int compare(Candle a, Candle b) {
+                return Long.compare(schema.getLong(a, keyField), schema.getLong(b, keyField));
+            }
+
+        });
+
+        // Merge into new columns
+        Columns m = new Columns(schema, size + in.size());
+        int n = 0, i = 0, j = 0;
+        boolean changed = false;
+        while (i < size || j < in.size()) {
+            long ki = i < size ? keyAt(i) : Long.MAX_VALUE;
+            long kj = j < in.size() ? schema.getLong(in.get(j), keyField) : Long.MAX_VALUE;
+            if (i < size && ki <= kj) {
+                // Skip new candle of the same serial number
+                if (ki == kj) {
+                    ++j;
+                }
+                m.copy(cols, slot(i++), n++);
+            } else {
+                // Skip duplicated new candles
+                if (n == 0 || m.keys[n - 1] != kj) {
+                    m.write(n++, in.get(j));
+                    changed = true;
+                }
+                ++j;
+            }
+        }
+
+        if (!changed) {
+            return false;
+        }
+
+        // Keep the newest candles
+        int keep = Math.min(n, maxCapacity);
+        Columns c = new Columns(schema, Math.max(keep, cols.capacity()));
+        for (int k = 0; k < keep; ++k) {
+            c.copy(m, n - keep + k, k);
+        }
+        cols = c;
+        head = 0;
+        size = keep;
+        return true;
+    }
+
+    /**
+     * Get the newest candles, older to left and newer to right.
+     * <p>
+     * Columns are copied with array copy, candle objects are created when elements
+     * are accessed, e.g. encoding. The view isn't affected by later changes.
+     *
+     * @param n max number of candles
+     * @return view of candles
+     */
+    public View last(int n) {
+        int len = Math.max(0, Math.min(n, size));
+        Columns c = new Columns(schema, len);
+
+        // At most two ranges in ring
+        int from = slot(size - len);
+        int first = Math.min(len, cols.capacity() - from);
+        c.copyRange(cols, from, 0, first);
+        c.copyRange(cols, 0, first, len - first);
+        return new View(c, len);
+    }
+
+    /**
+     * Get candle of index, 0 is the oldest.
+     */
+    public Candle get(int i) {
+        return cols.read(slot(i));
+    }
+
+    /**
+     * Get string field of candle without creating candle object.
+     */
+    public String getString(int field, int i) {
+        return Strings.valueOf(cols.codes[field][slot(i)]);
+    }
+
+    /**
+     * Get numeric field of candle without creating candle object.
+     */
+    public double getNumber(int field, int i) {
+        int s = slot(i);
+        return cols.doubles[field] != null ? cols.doubles[field][s] : cols.longs[field][s];
+    }
+
+    protected long keyAt(int i) {
+        return cols.keys[slot(i)];
+    }
+
+    protected int slot(int i) {
+        int s = head + i;
+        int cap = cols.capacity();
+        return s >= cap ? s - cap : s;
+    }
+
+    /**
+     * Binary search for serial number.
+     *
+     * @return index of candle, or (-(insertion point) - 1)
+     */
+    protected int search(long k) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = keyAt(mid);
+            if (v < k) {
+                lo = mid + 1;
+            } else if (v > k) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Grow capacity, the ring is unrolled into new arrays.
+     *
+     * @return false if capacity is at max
+     */
+    protected boolean grow(int min) {
+        int cap = cols.capacity();
+        if (cap >= maxCapacity) {
+            return false;
+        }
+
+        int ncap = Math.min(maxCapacity, Math.max(min, Math.max(16, cap * 2)));
+        Columns c = new Columns(schema, ncap);
+        int first = Math.min(size, cap - head);
+        c.copyRange(cols, head, 0, first);
+        c.copyRange(cols, 0, first, size - first);
+        cols = c;
+        head = 0;
+        return true;
+    }
+
+    /**
+     * Parallel arrays, one per candle field.
+     */
+    static class Columns {
+        HQDataSchema schema;
+        int keyField;
+
+        // Serial numbers, also in longs
+        long[] keys;
+
+        // Columns by field index, null if field is of other kind,
+        // strings are codes in dictionary
+        long[][] longs;
+        double[][] doubles;
+        int[][] codes;
+
+        Columns(HQDataSchema schema, int capacity) {
+            this.schema = schema;
+            this.keyField = schema.indexOf(KeyField);
+            this.longs = new long[schema.size()][];
+            this.doubles = new double[schema.size()][];
+            this.codes = new int[schema.size()][];
+            for (int f = 0; f < schema.size(); ++f) {
+                switch (schema.kind(f)) {
+                case HQDataSchema.Kind_String:
+                    codes[f] = new int[capacity];
+                    break;
+                case HQDataSchema.Kind_Double:
+                    doubles[f] = new double[capacity];
+                    break;
+                default:
+                    longs[f] = new long[capacity];
+                }
+            }
+            this.keys = longs[keyField];
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        void write(int s, Candle c) {
+            for (int f = 0; f < schema.size(); ++f) {
+                switch (schema.kind(f)) {
+                case HQDataSchema.Kind_String:
+                    codes[f][s] = Strings.codeOf(schema.getString(c, f));
+                    break;
+                case HQDataSchema.Kind_Double:
+                    doubles[f][s] = schema.getDouble(c, f);
+                    break;
+                case HQDataSchema.Kind_Boolean:
+                    longs[f][s] = schema.getBoolean(c, f) ? 1 : 0;
+                    break;
+                default:
+                    longs[f][s] = schema.getLong(c, f);
+                }
+            }
+        }
+
+        Candle read(int s) {
+            Candle c = (Candle) schema.newInstance();
+            for (int f = 0; f < schema.size(); ++f) {
+                switch (schema.kind(f)) {
+                case HQDataSchema.Kind_String:
+                    schema.setString(c, f, Strings.valueOf(codes[f][s]));
+                    break;
+                case HQDataSchema.Kind_Double:
+                    schema.setDouble(c, f, doubles[f][s]);
+                    break;
+                case HQDataSchema.Kind_Boolean:
+                    schema.setBoolean(c, f, longs[f][s] != 0);
+                    break;
+                default:
+                    schema.setLong(c, f, longs[f][s]);
+                }
+            }
+            return c;
+        }
+
+        boolean same(int s, Candle c) {
+            for (int f = 0; f < schema.size(); ++f) {
+                switch (schema.kind(f)) {
+                case HQDataSchema.Kind_String:
+                    String v = schema.getString(c, f), x = Strings.valueOf(codes[f][s]);
+                    if (v == null ? x != null : !v.equals(x)) {
+                        return false;
+                    }
+                    break;
+                case HQDataSchema.Kind_Double:
+                    if (Double.compare(doubles[f][s], schema.getDouble(c, f)) != 0) {
+                        return false;
+                    }
+                    break;
+                case HQDataSchema.Kind_Boolean:
+                    if ((longs[f][s] != 0) != schema.getBoolean(c, f)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (longs[f][s] != schema.getLong(c, f)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void copy(Columns src, int from, int to) {
+            copyRange(src, from, to, 1);
+        }
+
+        void copyRange(Columns src, int from, int to, int len) {
+            if (len < 1) {
+                return;
+            }
+            for (int f = 0; f < longs.length; ++f) {
+                if (longs[f] != null) {
+                    System.arraycopy(src.longs[f], from, longs[f], to, len);
+                } else if (doubles[f] != null) {
+                    System.arraycopy(src.doubles[f], from, doubles[f], to, len);
+                } else {
+                    System.arraycopy(src.codes[f], from, codes[f], to, len);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dictionary of string values, a value gets a code on first sight and codes
+     * are never reused. Decoding is lock-free.
+     */
+    static class Dictionary {
+        // Code of null
+        final static int NullCode = -1;
+
+        ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+        HQInstruments.Table<String> values = new HQInstruments.Table<>();
+        int size;
+
+        int codeOf(String v) {
+            if (v == null) {
+                return NullCode;
+            }
+            Integer c = codes.get(v);
+            return c != null ? c : register(v);
+        }
+
+        String valueOf(int code) {
+            return code == NullCode ? null : values.get(code);
+        }
+
+        synchronized int register(String v) {
+            Integer c = codes.get(v);
+            if (c != null) {
+                return c;
+            }
+            if (size >= HQInstruments.MaxIds) {
+                throw new IllegalStateException("Too many distinct candle strings, " + size);
+            }
+
+            // Value is readable before its code is published
+            int code = size++;
+            values.set(code, v);
+            codes.put(v, code);
+            return code;
+        }
+    }
+
+    /**
+     * Read-only list over copied columns, candle objects are created on access.
+     */
+    public static class View extends AbstractList<Candle> implements RandomAccess {
+        Columns cols;
+        int size;
+
+        View(Columns cols, int size) {
+            this.cols = cols;
+            this.size = size;
+        }
+
+        @Override
+        public Candle get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return cols.read(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
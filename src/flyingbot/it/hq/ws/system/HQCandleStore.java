@@ -0,0 +1,586 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Persistent candle store, one memory-mapped append-only file per instrument and period.
+ * <p>
+ * File format, all numbers are little-endian,
+ * <pre>
+ * u32 magic "HQC1"
+ * u32 header size, records start here
+ * i64 record number
+ * u32 flags, bit 0 marks DB has no candles older than the first record
+ * u32 slot of the first record, free slots before it are room for older records
+ * layout definition, see {@link HQBinaryLayout}, strings are ASCII
+ * fixed-size records
+ * </pre>
+ * Records are sorted by serial number, so the file is its own index and a record
+ * is found by binary search. Newer records are appended and older records are
+ * prepended in place. A merge in the middle, or a prepend without room, writes
+ * a new file and renames it over the old one, so a crash never leaves a half
+ * written file, and the room before records is doubled on each rewrite. Files
+ * are opened and mapped on first access, and unmapped and closed when the
+ * instrument is removed from cache.
+ */
+public class HQCandleStore {
+    // Header
+    final static int Store_Magic = 0x31435148;
+    final static int Off_HeaderSize = 4;
+    final static int Off_Count = 8;
+    final static int Off_Flags = 16;
+    final static int Off_Start = 20;
+    final static int FixedHeaderSize = 24;
+
+    // Header flags
+    public final static int Flag_Complete = 1;
+
+    // Store directory
+    File dir;
+
+    // Opened files, key: instrument/period
+    HashMap<String, CandleFile> files;
+
+    // Logger instance
+    Logger LOG;
+
+    public HQCandleStore(File dir, Logger log) {
+        this.dir = dir;
+        this.files = new HashMap<>();
+        this.LOG = log;
+    }
+
+    /**
+     * Load the newest candles.
+     *
+     * @param inst   instrument id
+     * @param period candle period in minutes
+     * @param n      max number of candles
+     * @return candles, older to left and newer to right, empty if none is stored
+     */
+    public List<Candle> load(String inst, int period, int n) {
+        List<Candle> ret = new ArrayList<>();
+        CandleFile f = fileOf(inst, period);
+        if (f == null) {
+            return ret;
+        }
+
+        synchronized (f) {
+            if (f.closed) {
+                return ret;
+            }
+            for (long i = Math.max(0, f.count - n); i < f.count; ++i) {
+                ret.add((Candle) f.layout.readRecord(f.buf, f.position(i)));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get serial number of the newest stored candle.
+     *
+     * @return serial number, or Long.MIN_VALUE if none is stored
+     */
+    public long lastSerial(String inst, int period) {
+        CandleFile f = fileOf(inst, period);
+        if (f == null) {
+            return Long.MIN_VALUE;
+        }
+
+        synchronized (f) {
+            return !f.closed && f.count > 0 ? f.keyAt(f.count - 1) : Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Test if DB has no candles older than the stored ones.
+     */
+    public boolean isComplete(String inst, int period) {
+        CandleFile f = fileOf(inst, period);
+        if (f == null) {
+            return false;
+        }
+
+        synchronized (f) {
+            return !f.closed && (f.flags & Flag_Complete) != 0;
+        }
+    }
+
+    /**
+     * Append candle, replace the stored candle of the same serial number.
+     * Candles older than the newest one are dropped if not stored.
+     *
+     * @param c candle
+     */
+    public void append(Candle c) {
+        CandleFile f = fileOf(c.InstrumentID, c.Period);
+        if (f == null) {
+            return;
+        }
+
+        synchronized (f) {
+            if (!f.closed) {
+                f.append(c);
+            }
+        }
+    }
+
+    /**
+     * Merge candles, e.g. loaded from DB. Stored candles are kept.
+     *
+     * @param inst     instrument id
+     * @param period   candle period in minutes
+     * @param candles  candles in any order
+     * @param complete true if DB has no candles older than the merged ones
+     */
+    public void merge(String inst, int period, List<Candle> candles, boolean complete) {
+        CandleFile f = fileOf(inst, period);
+        if (f == null) {
+            return;
+        }
+
+        synchronized (f) {
+            if (f.closed) {
+                return;
+            }
+            try {
+                f.merge(candles);
+
+                // Flag is set after candles are written
+                if (complete && !f.closed) {
+                    f.flags |= Flag_Complete;
+                    f.buf.setIntLE(Off_Flags, f.flags);
+                }
+            } catch (IOException e) {
+                LOG.warning("Merging candle store failed, " + f.file + ", " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replace stored candles, e.g. stored candles are not contiguous with DB.
+     *
+     * @param inst     instrument id
+     * @param period   candle period in minutes
+     * @param candles  candles in any order
+     * @param complete true if DB has no candles older than the candles
+     */
+    public void replace(String inst, int period, List<Candle> candles, boolean complete) {
+        CandleFile f = fileOf(inst, period);
+        if (f == null) {
+            return;
+        }
+
+        synchronized (f) {
+            if (f.closed) {
+                return;
+            }
+            try {
+                f.rewrite(f.sorted(candles), 0, complete ? Flag_Complete : 0);
+            } catch (IOException e) {
+                LOG.warning("Replacing candle store failed, " + f.file + ", " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close files of instrument, they are mapped again on next access.
+     */
+    public synchronized void close(String inst) {
+        Iterator<Map.Entry<String, CandleFile>> iter = files.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, CandleFile> e = iter.next();
+            if (e.getKey().startsWith(inst + "/")) {
+                close(e.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (CandleFile f : files.values()) {
+            close(f);
+        }
+        files.clear();
+    }
+
+    protected void close(CandleFile f) {
+        // Wait for readers of the mapping before unmapping it
+        synchronized (f) {
+            f.close();
+        }
+    }
+
+    protected synchronized CandleFile fileOf(String inst, int period) {
+        String key = inst + "/" + period;
+        CandleFile f = files.get(key);
+        if (f != null && !f.closed) {
+            return f;
+        }
+
+        // Instrument id as file name
+        String name = inst.replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + period + ".hqc";
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Creating directory " + dir + " failed");
+            }
+            f = new CandleFile(new File(dir, name));
+            files.put(key, f);
+        } catch (IOException e) {
+            LOG.warning("Opening candle store failed, " + name + ", " + e.getMessage());
+        }
+        return f;
+    }
+
+    class CandleFile {
+        File file;
+        RandomAccessFile raf;
+        FileChannel channel;
+
+        // Mapped file
+        MappedByteBuffer map;
+        ByteBuf buf;
+
+        // Record layout
+        HQBinaryLayout layout;
+        int headerSize;
+
+        // Serial number field of layout
+        int keyField;
+        int keyOffset;
+        byte keyKind;
+
+        // Header values
+        long count;
+        long start;
+        int flags;
+
+        // Unmapped, e.g. instrument removed or rewriting failed
+        volatile boolean closed;
+
+        CandleFile(File file) throws IOException {
+            this.file = file;
+            try {
+                openFile();
+                if (channel.size() < FixedHeaderSize || !open()) {
+                    create();
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+            }
+        }
+
+        protected void openFile() throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        /**
+         * Open existing file.
+         *
+         * @return false if file is invalid
+         */
+        protected boolean open() throws IOException {
+            map(channel.size());
+            if (buf.getIntLE(0) != Store_Magic) {
+                LOG.warning("Invalid candle store, re-create " + file);
+                return false;
+            }
+
+            headerSize = buf.getIntLE(Off_HeaderSize);
+            count = buf.getLongLE(Off_Count);
+            flags = buf.getIntLE(Off_Flags);
+            start = buf.getUnsignedIntLE(Off_Start);
+            layout = HQBinaryLayout.read(buf.duplicate().readerIndex(FixedHeaderSize));
+            if (!findKey() || headerSize + (start + count) * layout.recordSize > channel.size()) {
+                LOG.warning("Invalid candle store, re-create " + file);
+                return false;
+            }
+            return true;
+        }
+
+        protected void create() throws IOException {
+            layout = HQBinaryLayout.of(Binary_TypeCandle, CandleStore_AsciiWidth);
+            if (!findKey()) {
+                throw new IOException("Candle has no field " + HQCandleColumns.KeyField);
+            }
+            rewrite(Collections.<Candle>emptyList(), 0, 0);
+        }
+
+        protected boolean findKey() {
+            for (int f = 0; f < layout.kinds.length; ++f) {
+                if (HQCandleColumns.KeyField.equals(layout.names[f]) && layout.fields[f] >= 0
+                        && (layout.kinds[f] == HQBinaryLayout.Kind_Long || layout.kinds[f] == HQBinaryLayout.Kind_Int)) {
+                    keyField = f;
+                    keyOffset = layout.offsets[f];
+                    keyKind = layout.kinds[f];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Map file of size, the old mapping is unmapped.
+         */
+        protected void map(long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Candle store is too large, " + file);
+            }
+            MappedByteBuffer old = map;
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf = Unpooled.wrappedBuffer(map);
+            unmap(old);
+        }
+
+        int position(long i) {
+            return (int) (headerSize + (start + i) * layout.recordSize);
+        }
+
+        long keyAt(long i) {
+            int at = position(i) + keyOffset;
+            return keyKind == HQBinaryLayout.Kind_Long ? buf.getLongLE(at) : buf.getIntLE(at);
+        }
+
+        long keyOf(Candle c) {
+            return layout.schema.getLong(c, layout.fields[keyField]);
+        }
+
+        void append(Candle c) {
+            long k = keyOf(c);
+            if (count > 0 && k <= keyAt(count - 1)) {
+                // Replace stored candle
+                long i = search(k);
+                if (i >= 0) {
+                    layout.writeRecord(buf, position(i), c);
+                }
+                return;
+            }
+
+            try {
+                ensureCapacity(count + 1);
+            } catch (IOException e) {
+                LOG.warning("Growing candle store failed, " + file + ", " + e.getMessage());
+                return;
+            }
+            layout.writeRecord(buf, position(count), c);
+            buf.setLongLE(Off_Count, ++count);
+        }
+
+        void merge(List<Candle> candles) throws IOException {
+            List<Candle> in = sorted(candles);
+            if (in.isEmpty()) {
+                return;
+            }
+
+            // Newer candles are appended, the last one may be replaced
+            if (count == 0 || keyOf(in.get(0)) >= keyAt(count - 1)) {
+                for (Candle c : in) {
+                    append(c);
+                }
+                return;
+            }
+
+            // Older candles are prepended
+            if (keyOf(in.get(in.size() - 1)) < keyAt(0)) {
+                prepend(in);
+                return;
+            }
+
+            // Rewrite file with merged candles
+            List<Candle> all = new ArrayList<>();
+            int j = 0;
+            for (long i = 0; i < count; ++i) {
+                long k = keyAt(i);
+                while (j < in.size() && keyOf(in.get(j)) <= k) {
+                    if (keyOf(in.get(j)) < k) {
+                        all.add(in.get(j));
+                    }
+                    ++j;
+                }
+                all.add((Candle) layout.readRecord(buf, position(i)));
+            }
+            all.addAll(in.subList(j, in.size()));
+            rewrite(all, start, flags);
+        }
+
+        /**
+         * Put sorted candles older than the first record before it, in place if
+         * there is room, otherwise rewrite with doubled room.
+         */
+        void prepend(List<Candle> in) throws IOException {
+            int n = in.size();
+            if (n > start) {
+                List<Candle> all = new ArrayList<>(in);
+                for (long i = 0; i < count; ++i) {
+                    all.add((Candle) layout.readRecord(buf, position(i)));
+                }
+                rewrite(all, Math.max(n, count), flags);
+                return;
+            }
+
+            // Records are written before header, and start before count, a crash
+            // in between drops the newest records, which are loaded again
+            for (int i = 0; i < n; ++i) {
+                layout.writeRecord(buf, position(i - n), in.get(i));
+            }
+            start -= n;
+            buf.setIntLE(Off_Start, (int) start);
+            count += n;
+            buf.setLongLE(Off_Count, count);
+        }
+
+        /**
+         * Write candles to a new file and rename it over this file, then map it.
+         *
+         * @param all   sorted candles
+         * @param front free slots before the first record
+         * @param flags header flags
+         */
+        void rewrite(List<Candle> all, long front, int flags) throws IOException {
+            ByteBuf def = Unpooled.buffer();
+            layout.write(def);
+            int hs = FixedHeaderSize + def.readableBytes();
+            long size = hs + (front + Math.max(all.size(), CandleColumns_InitCapacity)) * layout.recordSize;
+            if (size > Integer.MAX_VALUE || front > 0xffffffffL) {
+                throw new IOException("Candle store is too large, " + file);
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (RandomAccessFile r = new RandomAccessFile(tmp, "rw")) {
+                r.setLength(0);
+                MappedByteBuffer m = r.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                try {
+                    ByteBuf b = Unpooled.wrappedBuffer(m);
+                    b.setIntLE(0, Store_Magic);
+                    b.setIntLE(Off_HeaderSize, hs);
+                    b.setLongLE(Off_Count, all.size());
+                    b.setIntLE(Off_Flags, flags);
+                    b.setIntLE(Off_Start, (int) front);
+                    b.setBytes(FixedHeaderSize, def, def.readerIndex(), def.readableBytes());
+                    for (int i = 0; i < all.size(); ++i) {
+                        layout.writeRecord(b, (int) (hs + (front + i) * layout.recordSize), all.get(i));
+                    }
+                    m.force();
+                } finally {
+                    unmap(m);
+                }
+            }
+
+            // File can't be replaced while mapped on some systems
+            close();
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                openFile();
+                if (!open()) {
+                    throw new IOException("Rewritten candle store is invalid, " + file);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            closed = false;
+        }
+
+        /**
+         * Sort candles by serial number, the last of the same serial number is kept.
+         */
+        List<Candle> sorted(List<Candle> candles) {
+            List<Candle> in = new ArrayList<>(candles);
+            in.sort(new Comparator<Candle>() {
+
+                @Override
+                public int compare(Candle a, Candle b) {
+                    return Long.compare(keyOf(a), keyOf(b));
+                }
+
+            });
+
+            List<Candle> ret = new ArrayList<>(in.size());
+            for (Candle c : in) {
+                if (!ret.isEmpty() && keyOf(ret.get(ret.size() - 1)) == keyOf(c)) {
+                    ret.set(ret.size() - 1, c);
+                } else {
+                    ret.add(c);
+                }
+            }
+            return ret;
+        }
+
+        long search(long k) {
+            long lo = 0, hi = count - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                long v = keyAt(mid);
+                if (v < k) {
+                    lo = mid + 1;
+                } else if (v > k) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        void ensureCapacity(long n) throws IOException {
+            long size = headerSize + (start + n) * layout.recordSize;
+            if (size <= buf.capacity()) {
+                return;
+            }
+
+            // Double mapped size
+            map(Math.max(size, headerSize + 2L * (buf.capacity() - headerSize)));
+        }
+
+        /**
+         * Flush and unmap file, caller holds the lock of file.
+         */
+        void close() {
+            closed = true;
+            try {
+                if (map != null) {
+                    map.force();
+                }
+            } finally {
+                unmap(map);
+                map = null;
+                buf = null;
+                try {
+                    if (raf != null) {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    LOG.warning("Closing candle store failed, " + file + ", " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Unmap file now instead of on GC, so file handles and address space are freed.
+     * Buffer must not be accessed after.
+     */
+    static void unmap(MappedByteBuffer m) {
+        if (m != null) {
+            PlatformDependent.freeDirectBuffer(m);
+        }
+    }
+}
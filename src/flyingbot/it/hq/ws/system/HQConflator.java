@@ -0,0 +1,232 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.data.hq.TransferredData;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Latest-value market data for channels that don't need every tick.
+ * <p>
+ * A conflated channel keeps the latest tick of each subscribed instrument, and
+ * sends them together at most once per interval on a timer wheel. Candles and
+ * channels not conflated are sent as they come, and the held tick of instrument is
+ * sent before its candle, so a tick never follows a newer candle.
+ */
+public class HQConflator {
+    // Conflation of channel, absent if channel gets every tick
+    public final static AttributeKey<Slots> SlotsKey = AttributeKey.valueOf("client.ws.conflate");
+
+    // Timer wheel shared by all channels
+    HashedWheelTimer timer;
+
+    // Frames are finally sent by slow consumer policy
+    HQSlowConsumers slowConsumers;
+
+    public HQConflator(HQSlowConsumers slowConsumers) {
+        this.slowConsumers = slowConsumers;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("hq-conflate", true),
+                Conflate_TimerTickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Parse interval, e.g. 250ms, 1s, or 250 in milliseconds.
+     *
+     * @return interval in milliseconds, or -1 if invalid
+     */
+    public static long parseInterval(String s) {
+        if (s == null) {
+            return -1;
+        }
+
+        s = s.trim().toLowerCase();
+        long unit = 1;
+        if (s.endsWith("ms")) {
+            s = s.substring(0, s.length() - 2);
+        } else if (s.endsWith("s")) {
+            s = s.substring(0, s.length() - 1);
+            unit = 1000;
+        }
+
+        try {
+            long v = Long.parseLong(s.trim()) * unit;
+            return v >= 0 && v <= Conflate_MaxMillis ? v : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Set conflation interval of channel.
+     *
+     * @param c      channel
+     * @param millis interval, 0 to send every tick
+     */
+    public void interval(final Channel c, long millis) {
+        if (millis <= 0) {
+            Slots s = c.attr(SlotsKey).getAndSet(null);
+            if (s != null) {
+                flush(c, s);
+            }
+            return;
+        }
+
+        Slots s = new Slots(Math.max(millis, Conflate_MinMillis));
+        Slots old = c.attr(SlotsKey).getAndSet(s);
+        if (old != null) {
+            flush(c, old);
+            return;
+        }
+
+        // Release held ticks when channel is closed, one listener per channel
+        c.closeFuture().addListener(new ChannelFutureListener() {
+
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                Slots s = c.attr(SlotsKey).getAndSet(null);
+                if (s != null) {
+                    s.clear();
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Hold tick as the latest of instrument if channel is conflated.
+     *
+     * @param c  channel
+     * @param id instrument id
+     * @param d  data in frame
+     * @param f  frame, owned by conflator if held
+     * @return false if channel gets every tick, caller sends the frame
+     */
+    public boolean offer(final Channel c, int id, TransferredData<?> d, WebSocketFrame f) {
+        final Slots s = c.attr(SlotsKey).get();
+        if (s == null) {
+            return false;
+        }
+
+        // Held tick goes before candle of the same instrument
+        if (d instanceof Candle) {
+            synchronized (s) {
+                send(c, id, s.latest.getAndSet(id, null));
+            }
+            return false;
+        }
+        if (!(d instanceof MarketData)) {
+            return false;
+        }
+
+        WebSocketFrame old = s.latest.getAndSet(id, f);
+        if (old != null) {
+            old.release();
+        } else {
+            synchronized (s) {
+                s.hold(id);
+            }
+        }
+
+        // Channel closed or interval changed meanwhile, slots may be flushed already
+        if (c.attr(SlotsKey).get() != s) {
+            synchronized (s) {
+                send(c, id, s.latest.getAndSet(id, null));
+            }
+            return true;
+        }
+
+        // One flush scheduled per interval
+        if (s.scheduled.compareAndSet(false, true)) {
+            timer.newTimeout(new TimerTask() {
+
+                @Override
+                public void run(Timeout timeout) {
+                    flush(c, s);
+                }
+
+            }, s.millis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    public void destroy() {
+        timer.stop();
+    }
+
+    protected void flush(Channel c, Slots s) {
+        // Ticks after this schedule next flush
+        s.scheduled.set(false);
+
+        // Written in lock, so a candle sent after it follows held ticks
+        synchronized (s) {
+            for (int i = 0; i < s.heldCount; ++i) {
+                send(c, s.held[i], s.latest.getAndSet(s.held[i], null));
+            }
+            s.heldCount = 0;
+        }
+    }
+
+    protected void send(Channel c, int id, WebSocketFrame f) {
+        if (f == null) {
+            return;
+        }
+        if (c.isActive()) {
+            slowConsumers.write(c, id, null, f);
+        } else {
+            f.release();
+        }
+    }
+
+    /**
+     * Latest ticks of channel.
+     */
+    static class Slots {
+        // Latest tick by instrument id, set without lock
+        HQInstruments.Table<WebSocketFrame> latest;
+
+        // Ids that may hold a tick, in lock
+        int[] held;
+        int heldCount;
+
+        AtomicBoolean scheduled;
+        long millis;
+
+        Slots(long millis) {
+            this.millis = millis;
+            this.latest = new HQInstruments.Table<>();
+            this.held = new int[16];
+            this.scheduled = new AtomicBoolean(false);
+        }
+
+        void hold(int id) {
+            if (heldCount == held.length) {
+                held = Arrays.copyOf(held, held.length * 2);
+            }
+            held[heldCount++] = id;
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < heldCount; ++i) {
+                WebSocketFrame f = latest.getAndSet(held[i], null);
+                if (f != null) {
+                    f.release();
+                }
+            }
+            heldCount = 0;
+        }
+    }
+}
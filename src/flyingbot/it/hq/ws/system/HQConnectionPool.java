@@ -0,0 +1,240 @@
+package flyingbot.it.hq.ws.system;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Small JDBC connection pool.
+ * <p>
+ * At most max size connections are open, a borrower waits for a free one.
+ * Each connection caches its prepared statements, which time out after the
+ * query timeout. Each borrowing gets its own handle, closing it more than once
+ * returns the connection only once. Connections are checked
+ * before reuse, a connection idle for long is validated, and a connection
+ * past its lifetime or marked broken is closed instead of reused.
+ * <p>
+ * Connections come from a {@link ConnectionFactory}, e.g. a stub for test.
+ */
+public class HQConnectionPool {
+    // Connection source
+    ConnectionFactory factory;
+
+    // Limits
+    long maxLifeMillis, validateIdleMillis;
+    int validateTimeoutSec, queryTimeoutSec;
+
+    // Permits for open connections
+    Semaphore permits;
+
+    // Idle connections, the most recently used first
+    LinkedBlockingDeque<Entry> idle;
+
+    volatile boolean closed = false;
+
+    // Logger instance
+    Logger LOG;
+
+    public HQConnectionPool(ConnectionFactory factory, int maxSize, long maxLifeMillis,
+                            long validateIdleMillis, int validateTimeoutSec, int queryTimeoutSec, Logger log) {
+        this.factory = factory;
+        this.maxLifeMillis = maxLifeMillis;
+        this.validateIdleMillis = validateIdleMillis;
+        this.validateTimeoutSec = validateTimeoutSec;
+        this.queryTimeoutSec = queryTimeoutSec;
+        this.permits = new Semaphore(maxSize, true);
+        this.idle = new LinkedBlockingDeque<>();
+        this.LOG = log;
+    }
+
+    /**
+     * Create factory of DriverManager connections.
+     */
+    public static ConnectionFactory driverManager(final String url, final String user, final String password) {
+        return new ConnectionFactory() {
+
+            @Override
+            public Connection connect() throws SQLException {
+                return DriverManager.getConnection(url, user, password);
+            }
+
+        };
+    }
+
+    /**
+     * Borrow connection, close it to return to pool.
+     *
+     * @param timeoutMillis max time to wait for a free connection
+     * @return connection
+     * @throws SQLException if no connection is available in time, or connecting failed
+     */
+    public PooledConnection borrow(long timeoutMillis) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timeout waiting for DB connection, " + timeoutMillis + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for DB connection");
+        }
+
+        try {
+            // Reuse a healthy idle connection
+            Entry c;
+            while ((c = idle.pollFirst()) != null) {
+                if (c.isHealthy()) {
+                    return new PooledConnection(c);
+                }
+                c.destroy();
+            }
+
+            // Open new connection
+            return new PooledConnection(new Entry(factory.connect()));
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    protected void giveBack(Entry c) {
+        if (closed || c.broken || expired(c)) {
+            c.destroy();
+        } else {
+            c.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(c);
+        }
+        permits.release();
+    }
+
+    protected boolean expired(Entry c) {
+        return System.currentTimeMillis() - c.created > maxLifeMillis;
+    }
+
+    /**
+     * Close idle connections, borrowed connections are closed when returned.
+     */
+    public void close() {
+        closed = true;
+        Entry c;
+        while ((c = idle.pollFirst()) != null) {
+            c.destroy();
+        }
+    }
+
+    public interface ConnectionFactory {
+        Connection connect() throws SQLException;
+    }
+
+    /**
+     * Handle of a borrowed connection, valid until closed.
+     */
+    public class PooledConnection implements AutoCloseable {
+        Entry entry;
+
+        // Returned to pool
+        AtomicBoolean closed;
+
+        PooledConnection(Entry entry) {
+            this.entry = entry;
+            this.closed = new AtomicBoolean(false);
+        }
+
+        /**
+         * Get prepared statement of connection, created once for each SQL.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            if (closed.get()) {
+                throw new SQLException("DB connection is returned to pool");
+            }
+            return entry.prepare(sql);
+        }
+
+        /**
+         * Mark connection broken, e.g. query failed, so it's closed when returned.
+         */
+        public void markBroken() {
+            if (!closed.get()) {
+                entry.broken = true;
+            }
+        }
+
+        /**
+         * Return connection to pool, only the first call returns it.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                giveBack(entry);
+            }
+        }
+    }
+
+    /**
+     * Pooled connection and its statements.
+     */
+    class Entry {
+        Connection conn;
+
+        // Prepared statements by SQL
+        HashMap<String, PreparedStatement> statements;
+
+        // Timestamps
+        long created, lastUsed;
+
+        // Not reused if true
+        volatile boolean broken;
+
+        Entry(Connection conn) {
+            this.conn = conn;
+            this.statements = new HashMap<>();
+            this.created = this.lastUsed = System.currentTimeMillis();
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement s = statements.get(sql);
+            if (s == null) {
+                s = conn.prepareStatement(sql);
+                s.setQueryTimeout(queryTimeoutSec);
+                statements.put(sql, s);
+            }
+            return s;
+        }
+
+        boolean isHealthy() {
+            if (expired(this)) {
+                return false;
+            }
+            if (System.currentTimeMillis() - lastUsed < validateIdleMillis) {
+                return true;
+            }
+
+            try {
+                return conn.isValid(validateTimeoutSec);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void destroy() {
+            try {
+                for (PreparedStatement s : statements.values()) {
+                    s.close();
+                }
+                conn.close();
+            } catch (SQLException e) {
+                LOG.warning("Closing DB connection failed, " + e.getMessage());
+            }
+        }
+    }
+}
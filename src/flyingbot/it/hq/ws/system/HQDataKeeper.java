@@ -4,75 +4,85 @@ import flyingbot.it.data.hq.Candle;
 import flyingbot.it.data.hq.MarketData;
 import flyingbot.it.hq.ws.resources.Constants;
 import flyingbot.it.util.Common;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static flyingbot.it.hq.ws.resources.Constants.*;
 
 public class HQDataKeeper {
 
-    public static long reconnectMillis = 1000 * 60 * 60;
-
     // Load info from JSON config
     String URL, userName, password, connStr;
 
-    // Database connection and statement
-    Connection connDB = null;
-    PreparedStatement statementDB = null;
+    // Database connections, each has its prepared statements
+    HQConnectionPool pool;
+
+    // Candle loads from DB, run in parallel
+    ThreadPoolExecutor dbExecutor;
+
+    // Running loads, key: instrument/period
+    ConcurrentHashMap<String, CompletableFuture<Boolean>> loadings;
+
+    // Max loads a query runs or waits for
+    final static int MaxLoadRounds = 3;
 
     // Logger instance
     Logger LOG = null;
 
-    // lock
-    ReadWriteLock lock;
+    // Instrument ids
+    HQInstruments instruments;
 
-    // Candle cache
-    Map<String, InstCandlePack> instPacks;
+    // Candle cache by instrument id
+    HQInstruments.Table<InstCandlePack> instPacks;
 
-	// Find product id from instrument id
-	Pattern patt;
+    // Encoded history messages of cached candles
+    public HQSnapshotCache snapshots;
+
+    // Persistent candles, survive restarts
+    HQCandleStore store;
+
+    // Higher periods from 1m candles, null if disabled
+    HQCandleAggregator aggregator;
 
-    // Timestamp for last access DB
-    long _LastAccessDB = 0;
     static String querySql = "SELECT `JSON` FROM `candledb`.`candle_01` "
             + "WHERE `InstrumentID` = ? AND `Period` = ? "
-            + "ORDER BY `SerialNo` DESC";
+            + "ORDER BY `SerialNo` DESC LIMIT ?";
+    static String newerQuerySql = "SELECT `JSON` FROM `candledb`.`candle_01` "
+            + "WHERE `InstrumentID` = ? AND `Period` = ? AND `SerialNo` > ? "
+            + "ORDER BY `SerialNo` DESC LIMIT ?";
+    static String olderQuerySql = "SELECT `JSON` FROM `candledb`.`candle_01` "
+            + "WHERE `InstrumentID` = ? AND `Period` = ? AND `SerialNo` < ? "
+            + "ORDER BY `SerialNo` DESC LIMIT ?";
+    static String rangeQuerySql = "SELECT `JSON` FROM `candledb`.`candle_01` "
+            + "WHERE `InstrumentID` = ? AND `Period` = ? AND `SerialNo` > ? AND `SerialNo` < ? "
+            + "ORDER BY `SerialNo` DESC LIMIT ?";
 	/**
-	 * Dominant instruments.
-	 * ProductID -> InstrumentID
+	 * Dominant instruments by product id.
 	 */
-	ConcurrentHashMap<String, String> domiInsts;
+	HQInstruments.Table<Dominant> domiInsts;
 
 	public List<Candle> getCandles(String InstrumentID, int Period, int ReversedNumber) {
-		InstCandlePack icp = null;
-
-		// Check id record exists
-		lock.readLock().lock();
-		icp = instPacks.get(InstrumentID);
-		lock.readLock().unlock();
+		// Instrument may be named by client, invalid ones have no candles
+		int id = instruments.clientIdOf(InstrumentID);
+		if (id < 0) {
+			return new LinkedList<Candle>();
+		}
 
 		// Create candle record if not exists
-		if (icp == null) {
-			lock.writeLock().lock();
-			// Re-confirm
-			if (!instPacks.containsKey(InstrumentID)) {
-				instPacks.put(InstrumentID, new InstCandlePack());
-			}
-
-			// Get instance again
-			icp = instPacks.get(InstrumentID);
-			lock.writeLock().unlock();
-		}
+		InstCandlePack icp = packOf(id);
 
 		// Query candles
 		List<Candle> lst = icp.queryCandle(Period, ReversedNumber);
@@ -81,15 +91,27 @@ public class HQDataKeeper {
 		if (lst != null && lst.size() >= ReversedNumber) {
 			return lst;
 		} else {
-			// Not enough data and hasn't fetched DB, query from DB
-            if (!icp.hasFetchedDB(Period)) {
-                lst = getCandleFromDB(InstrumentID, Period, ReversedNumber);
-
-				if (lst != null) {
-					// Merge newly queried data into cache
-					// (cache may have been removed at this point, but it doesn't matter)
-					for (Candle cnd : lst) {
-						icp.insertCandle(cnd);
+			// Cache can't hold more
+			int wanted = Math.min(ReversedNumber, CandleColumns_MaxCapacity);
+
+			// Concurrent loads of the same candles are coalesced, callers wait for the
+			// running load and check cache again. Waiting for others' loads is bounded.
+			String key = InstrumentID + "/" + Period;
+			boolean ok = true;
+			for (int round = 0; ok && round < MaxLoadRounds && needLoad(icp, Period, lst.size(), wanted); ++round) {
+				CompletableFuture<Boolean> f = new CompletableFuture<>();
+				CompletableFuture<Boolean> running = loadings.putIfAbsent(key, f);
+				if (running != null) {
+					ok = running.join();
+				} else {
+					ok = false;
+					try {
+						// Merge newly loaded data into cache
+						// (cache may have been removed at this point, but it doesn't matter)
+						ok = loadMissingCandles(icp, InstrumentID, Period, wanted);
+					} finally {
+						loadings.remove(key, f);
+						f.complete(ok);
 					}
 				}
 
@@ -97,47 +119,262 @@ public class HQDataKeeper {
 				// If the original cache has been removed,it will still do query
 				// and send candles to client, but it won't put it to cache.
 				lst = icp.queryCandle(Period, ReversedNumber);
-
-				// set mark
-                icp.hasFetchedDB(Period, true);
 			}
 
 			return lst;
 		}
 	}
 
-	public boolean removeInstPack(String inst) {
-		lock.writeLock().lock();
-		boolean ret = instPacks.remove(inst) != null;
-		lock.writeLock().unlock();
-		return ret;
+	private boolean needLoad(InstCandlePack icp, int Period, int cached, int wanted) {
+		return !icp.hasFetchedDB(Period) || (cached < wanted && !icp.hasReachedFirst(Period));
 	}
 
-	public List<MarketData> queryMarketData(String InstrumentID, int Number) {
-		boolean has = false;
+	/**
+	 * Load the newest candles if not fetched yet, or older candles if client scrolls back.
+	 * @return false if loading failed, it's retried by the next query
+	 */
+	private boolean loadMissingCandles(InstCandlePack icp, String InstrumentID, int Period, int wanted) {
+		// Derived from 1m candles, no query of the period
+		if (isDerived(Period)) {
+			boolean ok = deriveCandles(icp, InstrumentID, Period, wanted);
+			if (ok) {
+				icp.hasFetchedDB(Period, true);
+			}
+			return ok;
+		}
+
+		// Not enough data and hasn't fetched DB, query the newest from DB
+		if (!icp.hasFetchedDB(Period)) {
+			boolean ok = loadCandles(icp, InstrumentID, Period, wanted);
+
+			// set mark only if loaded, failed load is retried
+			if (ok) {
+				icp.hasFetchedDB(Period, true);
+			}
+			return ok;
+		}
+
+		// Client scrolls back, query the page before the oldest cached candle
+		return loadOlderCandles(icp, InstrumentID, Period, wanted);
+	}
+
+	/**
+	 * Load candles from local store, and only the missing candles from DB.
+	 * Loaded candles are merged into cache and store.
+	 * @return false if DB query failed
+	 */
+	private boolean loadCandles(InstCandlePack icp, String InstrumentID, int Period, int ReversedNumber) {
+		List<Candle> stored = store.load(InstrumentID, Period, ReversedNumber);
+		boolean complete = store.isComplete(InstrumentID, Period);
+		List<Candle> lst;
+		if (stored.size() > 0 && (stored.size() >= ReversedNumber || complete)) {
+			// Store has enough older candles, query candles newer than store, and
+			// the last stored one again, it may be stored before its bar closed
+			long last = store.lastSerial(InstrumentID, Period) - 1;
+			lst = getCandleFromDB(InstrumentID, Period, ReversedNumber, last, Long.MAX_VALUE);
+
+			// Page is full, page back until the gap to store is filled
+			List<Candle> page = lst;
+			while (page != null && page.size() >= ReversedNumber && lst.size() < CandleColumns_MaxCapacity) {
+				page = getCandleFromDB(InstrumentID, Period, ReversedNumber, last, firstSerial(page));
+				if (page != null) {
+					lst.addAll(page);
+				}
+			}
 
-		// Check if market data record exists
-		lock.readLock().lock();
-		has = instPacks.containsKey(InstrumentID);
-		lock.readLock().unlock();
+			if (lst != null && page == null) {
+				// Gap isn't loaded, keep store as is and retry by the next query
+				return false;
+			} else if (lst != null && page.size() >= ReversedNumber) {
+				// Gap is larger than cache, keep only the newest candles
+				stored.clear();
+				complete = false;
+				store.replace(InstrumentID, Period, lst, false);
+			} else if (lst != null) {
+				store.merge(InstrumentID, Period, lst, false);
+			}
+		} else {
+			// Query the newest candles, DB has no more if page isn't full
+			lst = getCandleFromDB(InstrumentID, Period, ReversedNumber, Long.MIN_VALUE, Long.MAX_VALUE);
+			complete = lst != null && lst.size() < ReversedNumber;
+			stored.clear();
+			if (lst != null) {
+				store.replace(InstrumentID, Period, lst, complete);
+			}
+		}
 
-		if (!has) {
-			lock.writeLock().lock();
+		// All candles are in cache
+		if (complete && stored.size() < ReversedNumber) {
+			icp.hasReachedFirst(Period, true);
+		}
 
-			// Reconfirm
-			if (!instPacks.containsKey(InstrumentID)) {
-				instPacks.put(InstrumentID, new InstCandlePack());
+		// Encoded history is out of date, cache keeps the first merged of the
+		// same serial number, so DB candles replace stale stored ones
+		boolean changed = false;
+		if (lst != null) {
+			changed = icp.mergeCandles(Period, lst);
+		}
+		changed |= icp.mergeCandles(Period, stored);
+		if (changed) {
+			snapshots.invalidate(InstrumentID, Period);
+		}
+		return lst != null;
+	}
+
+	/**
+	 * Load candles older than cached ones, from local store first and then DB
+	 * by serial number keyset. Loaded candles are merged into cache and store.
+	 * @return false if DB query failed
+	 */
+	private boolean loadOlderCandles(InstCandlePack icp, String InstrumentID, int Period, int ReversedNumber) {
+		// Stored candles are contiguous up to the newest
+		List<Candle> stored = store.load(InstrumentID, Period, ReversedNumber);
+		boolean changed = icp.mergeCandles(Period, stored);
+
+		boolean ok = true;
+		int missing = ReversedNumber - icp.candleCount(Period);
+		if (missing > 0) {
+			if (store.isComplete(InstrumentID, Period)) {
+				// Store has all candles
+				icp.hasReachedFirst(Period, true);
+			} else {
+				List<Candle> lst = getCandleFromDB(InstrumentID, Period, missing,
+						Long.MIN_VALUE, icp.firstSerial(Period));
+				if (lst != null) {
+					boolean first = lst.size() < missing;
+					changed |= icp.mergeCandles(Period, lst);
+					icp.hasReachedFirst(Period, first);
+
+					// Page is right before the stored candles
+					store.merge(InstrumentID, Period, lst, first);
+				} else {
+					ok = false;
+				}
 			}
+		}
 
-			lock.writeLock().unlock();
+		// Encoded history is out of date
+		if (changed) {
+			snapshots.invalidate(InstrumentID, Period);
 		}
+		return ok;
+	}
 
-		// read lock
-		lock.readLock().lock();
-		List<MarketData> lst = instPacks.get(InstrumentID).queryMarketData(Number);
-		lock.readLock().unlock();
+	/**
+	 * Derive candles from 1m candles. The newest buckets are derived from cached 1m
+	 * candles, which must cover the live bucket. Older buckets are derived page by page
+	 * from 1m candles in DB, which are not cached. The oldest bucket may miss 1m
+	 * candles, its 1m candles are kept and derived with the next page.
+	 * @return false if loading 1m candles failed
+	 */
+	private boolean deriveCandles(InstCandlePack icp, String InstrumentID, int Period, int wanted) {
+		if (!icp.hasFetchedDB(Period)) {
+			// Load 1m candles until they have a bucket before the live one
+			int n = Math.min(Period, TradingDay_Minutes) + 1;
+			boolean complete;
+			List<Candle> partial;
+			while (true) {
+				getCandles(InstrumentID, Candle_1m, n);
+				if (!icp.hasFetchedDB(Candle_1m)) {
+					return false;
+				}
+				complete = icp.hasReachedFirst(Candle_1m);
+				partial = icp.deriveCandles(aggregator, Period, complete);
+				if (complete || icp.candleCount(Period) > 0 || n >= CandleDerive_PageSize) {
+					break;
+				}
+				n = Math.min(n * 2, CandleDerive_PageSize);
+			}
+			icp.partialBucket(Period, partial);
+			icp.hasReachedFirst(Period, partial.isEmpty());
+		}
 
-		return lst;
+		// Page back from the oldest bucket, 1m candles in a page are bounded
+		while (icp.candleCount(Period) < wanted && !icp.hasReachedFirst(Period)) {
+			List<Candle> partial = icp.partialBucket(Period);
+			List<Candle> page = getCandleFromDB(InstrumentID, Candle_1m, CandleDerive_PageSize,
+					Long.MIN_VALUE, firstSerial(partial));
+			if (page == null) {
+				return false;
+			}
+
+			// DB has no more if page isn't full
+			boolean first = page.size() < CandleDerive_PageSize;
+			page.addAll(partial);
+			HQCandleColumns m1 = new HQCandleColumns(page.size(), page.size());
+			m1.merge(page);
+			partial = first ? new ArrayList<Candle>() : aggregator.firstBucket(m1, Period);
+
+			icp.mergeCandles(Period, aggregator.deriveAll(m1, Period, first));
+			icp.partialBucket(Period, partial);
+			icp.hasReachedFirst(Period, partial.isEmpty() || icp.candleCount(Period) >= CandleColumns_MaxCapacity);
+		}
+		snapshots.invalidate(InstrumentID, Period);
+		return true;
+	}
+
+	/**
+	 * Test if candles of the period are derived from 1m candles.
+	 */
+	public boolean isDerived(int Period) {
+		return aggregator != null && aggregator.isDerived(Period);
+	}
+
+	/**
+	 * Serial number of the newest cached candle, Long.MIN_VALUE if none.
+	 */
+	public long lastSerial(String InstrumentID, int Period) {
+		InstCandlePack icp = instPacks.get(instruments.find(InstrumentID));
+		return icp != null ? icp.lastSerial(Period) : Long.MIN_VALUE;
+	}
+
+	public boolean removeInstPack(String inst) {
+		int id = instruments.find(inst);
+		boolean ret = instPacks.get(id) != null;
+		if (ret) {
+			instPacks.set(id, null);
+		}
+
+		// Drop encoded history and unmap stored candles
+		snapshots.remove(inst);
+		store.close(inst);
+		return ret;
+	}
+
+	/**
+	 * Estimate bytes of cached candles and market data of instrument.
+	 * @param id instrument id, see {@link HQInstruments}
+	 */
+	public long estimatedBytes(int id) {
+		InstCandlePack icp = instPacks.get(id);
+		return icp != null ? icp.estimatedBytes() : 0;
+	}
+
+	public List<MarketData> queryMarketData(String InstrumentID, int Number) {
+		// Instrument may be named by client
+		int id = instruments.clientIdOf(InstrumentID);
+		if (id < 0) {
+			return new LinkedList<MarketData>();
+		}
+
+		// Create market data record if not exists
+		return packOf(id).queryMarketData(Number);
+	}
+
+	/**
+	 * Get cache of instrument, create it if not exists.
+	 * @param id instrument id, see {@link HQInstruments}
+	 */
+	protected InstCandlePack packOf(int id) {
+		InstCandlePack icp = instPacks.get(id);
+		if (icp == null) {
+			InstCandlePack n = new InstCandlePack();
+			icp = instPacks.putIfAbsent(id, n);
+			if (icp == null) {
+				icp = n;
+			}
+		}
+		return icp;
 	}
 
 	public Set<Integer> getCandlePeriods(String inst) {
@@ -151,135 +388,306 @@ public class HQDataKeeper {
 		return r;
 	}
 
-    synchronized private List<Candle> getCandleFromDB(String InstrumentID, int Period, int ReversedNumber) {
-        // TODO Investigate if we can generate 60/1440 candles from 1/5/15 candles.
-        // We can drop the second generator, candle2.exe, due to the above improvement.
-        return loadCandleFromDB(InstrumentID, Period, ReversedNumber);
+    private static long firstSerial(List<Candle> candles) {
+        long first = Long.MAX_VALUE;
+        for (Candle c : candles) {
+            first = Math.min(first, c.SerialNo);
+        }
+        return first;
     }
 
-    private List<Candle> loadCandleFromDB(String InstrumentID, int Period, int ReversedNumber) {
+    private List<Candle> getCandleFromDB(String InstrumentID, int Period, int ReversedNumber,
+                                         long AfterSerialNo, long BeforeSerialNo) {
+        try {
+            return loadCandleAsync(InstrumentID, Period, ReversedNumber, AfterSerialNo, BeforeSerialNo)
+                    .get(DB_LoadTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warning("Loading candles interrupted, " + InstrumentID + ", PERIOD: " + Period + "m");
+        } catch (TimeoutException e) {
+            LOG.severe("Loading candles timed out, " + InstrumentID + ", PERIOD: " + Period + "m, "
+                    + DB_LoadTimeoutMillis + "ms");
+        } catch (ExecutionException e) {
+            LOG.severe("Loading candles failed, " + InstrumentID + ", PERIOD: " + Period + "m, " + e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Load candles from DB on DB executor, loads of different instruments run in parallel.
+     * @return future of candles, null value if query failed
+     */
+    public CompletableFuture<List<Candle>> loadCandleAsync(final String InstrumentID, final int Period,
+                                                          final int ReversedNumber, final long AfterSerialNo,
+                                                          final long BeforeSerialNo) {
+        try {
+            return CompletableFuture.supplyAsync(new Supplier<List<Candle>>() {
+
+                @Override
+                public List<Candle> get() {
+                    return loadCandleFromDB(InstrumentID, Period, ReversedNumber, AfterSerialNo, BeforeSerialNo);
+                }
+
+            }, dbExecutor);
+        } catch (RejectedExecutionException e) {
+            // Too many loads queued
+            CompletableFuture<List<Candle>> f = new CompletableFuture<>();
+            f.completeExceptionally(e);
+            return f;
+        }
+    }
+
+    /**
+     * Load the newest candles in range from DB, at most ReversedNumber candles.
+     * @param AfterSerialNo only candles newer than it, Long.MIN_VALUE for no bound
+     * @param BeforeSerialNo only candles older than it, Long.MAX_VALUE for no bound
+     */
+    private List<Candle> loadCandleFromDB(String InstrumentID, int Period, int ReversedNumber,
+                                          long AfterSerialNo, long BeforeSerialNo) {
 		List<Candle> lst = null;
+		HQConnectionPool.PooledConnection conn = null;
 		try {
-			// Connect database if not connected
-			connectDatabase();
-
-			// Set params
-			statementDB.setString(1, InstrumentID);
-			statementDB.setInt(2, Period);
+			// Borrow connection, checked by pool
+			conn = pool.borrow(DB_BorrowTimeoutMillis);
+
+			// Set params, keyset on serial number
+			PreparedStatement stmt;
+			String range = "";
+			if (AfterSerialNo != Long.MIN_VALUE && BeforeSerialNo != Long.MAX_VALUE) {
+				stmt = conn.prepare(rangeQuerySql);
+				stmt.setLong(3, AfterSerialNo);
+				stmt.setLong(4, BeforeSerialNo);
+				stmt.setInt(5, ReversedNumber);
+				range = ", after: " + AfterSerialNo + ", before: " + BeforeSerialNo;
+			} else if (AfterSerialNo != Long.MIN_VALUE) {
+				stmt = conn.prepare(newerQuerySql);
+				stmt.setLong(3, AfterSerialNo);
+				stmt.setInt(4, ReversedNumber);
+				range = ", after: " + AfterSerialNo;
+			} else if (BeforeSerialNo != Long.MAX_VALUE) {
+				stmt = conn.prepare(olderQuerySql);
+				stmt.setLong(3, BeforeSerialNo);
+				stmt.setInt(4, ReversedNumber);
+				range = ", before: " + BeforeSerialNo;
+			} else {
+				stmt = conn.prepare(querySql);
+				stmt.setInt(3, ReversedNumber);
+			}
+			stmt.setString(1, InstrumentID);
+			stmt.setInt(2, Period);
 
 			// log start
 			LOG.info("Start loading candles from DB, " + InstrumentID
-                    + ", period: " + Period + "m, wanted: " + ReversedNumber);
-
-			ResultSet rs = statementDB.executeQuery();
+                    + ", period: " + Period + "m, wanted: " + ReversedNumber + range);
 
 			// Create return
 			lst = new LinkedList<Candle>();
-			while (rs.next()) {
-				String text = rs.getString(1);
-				Candle cnd = Candle.Parse(new JSONObject(text));
-				lst.add(cnd);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					String text = rs.getString(1);
+					Candle cnd = Candle.Parse(new JSONObject(text));
+					lst.add(cnd);
+				}
 			}
 
-			// Update timestamp
-			_LastAccessDB = System.currentTimeMillis();
-
 			// log end
             LOG.info("Loaded candles " + InstrumentID + ", PERIOD: " + Period + "m, found: " + lst.size());
 		} catch (SQLException e) {
+			// Connection may be dead, don't reuse
+			if (conn != null) {
+				conn.markBroken();
+			}
+			lst = null;
 			LOG.severe("Query candles from DB failed, " + InstrumentID + ", PERIOD: " + Period + "m, " + e.getMessage());
 		} catch (JSONException e) {
+			lst = null;
 			LOG.severe("Parse candle JSON failed, " + e.getMessage() + ", " + e.getMessage());
+		} finally {
+			// Return connection to pool
+			if (conn != null) {
+				conn.close();
+			}
 		}
 		return lst;
 	}
 
-	public void onCandle(Candle Cnd) {
-		// Sync
-		lock.writeLock().lock();
-		if (!instPacks.containsKey(Cnd.InstrumentID)) {
-			instPacks.put(Cnd.InstrumentID, new InstCandlePack());
-		}
-		lock.writeLock().unlock();
-
-		// Sync
-		lock.readLock().lock();
-		InstCandlePack icp = instPacks.get(Cnd.InstrumentID);
-		lock.readLock().unlock();
-
-		// Update candle
-		icp.insertCandle(Cnd);
-	}
+	/**
+	 * Update candle cache.
+	 * @param id instrument id, see {@link HQInstruments}
+	 * @return candles derived from 1m candle, empty if none has changed
+	 */
+	public List<Candle> onCandle(int id, Candle Cnd) {
+		List<Candle> derived = new LinkedList<Candle>();
 
-	public void onMarketData(MarketData Md) {
-		// Check if record exists
-		lock.writeLock().lock();
-		if (!instPacks.containsKey(Md.InstrumentID)) {
-			// Create new instance
-			instPacks.put(Md.InstrumentID, new InstCandlePack());
+		// Candles of derived periods are built from 1m candles
+		if (isDerived(Cnd.Period)) {
+			return derived;
 		}
-		lock.writeLock().unlock();
 
+		InstCandlePack icp = packOf(id);
 
-		// Sync
-		lock.readLock().lock();
-		InstCandlePack icp = instPacks.get(Md.InstrumentID);
-		lock.readLock().unlock();
+		// Update candle, drop encoded history if new candle is added
+		if (icp.insertCandle(Cnd)) {
+			snapshots.invalidate(Cnd.InstrumentID, Cnd.Period);
 
-		// Update market data
-		icp.insertMarketData(Md);
+			// Persist candles after they are loaded, or store misses candles in between
+			if (icp.hasFetchedDB(Cnd.Period)) {
+				store.append(Cnd);
+			}
+
+			// Update candles of the same buckets, after 1m candles of the live bucket are loaded
+			if (aggregator != null && Cnd.Period == Candle_1m && icp.hasFetchedDB(Candle_1m)) {
+				for (int p : aggregator.periods()) {
+					Candle d = icp.deriveCandle(aggregator, p);
+					if (d != null) {
+						derived.add(d);
+						snapshots.invalidate(Cnd.InstrumentID, p);
+					}
+				}
+			}
+		}
+		return derived;
 	}
 
 	/**
-	 * Open interest for current dominant instruments
+	 * Update market data cache.
+	 * @param id instrument id, see {@link HQInstruments}
 	 */
-	ConcurrentHashMap<String, Double> domiOpenIns;
+	public void onMarketData(int id, MarketData Md) {
+		// Update market data
+		packOf(id).insertMarketData(Md);
+	}
 
-	public HQDataKeeper(Logger Log) {
+	public HQDataKeeper(HQInstruments instruments, Logger Log) {
 		LOG = Log;
-		lock = new ReentrantReadWriteLock();
-		instPacks = new HashMap<>();
-		domiInsts = new ConcurrentHashMap<>();
-		domiOpenIns = new ConcurrentHashMap<>();
-        patt = Pattern.compile("[a-zA-Z]+");
+		this.instruments = instruments;
+		instPacks = new HQInstruments.Table<>();
+		loadings = new ConcurrentHashMap<>();
+		snapshots = new HQSnapshotCache(Snapshot_MaxBytes);
+		store = new HQCandleStore(new File(CandleStore_Dir), Log);
+		domiInsts = new HQInstruments.Table<>();
+		if (Candle_DeriveEnabled) {
+			try {
+				aggregator = new HQCandleAggregator(Candle_DerivedPeriods);
+			} catch (IllegalStateException e) {
+				LOG.severe("Deriving candles disabled, " + e.getMessage());
+			}
+		}
 		try {
 			loadConfiguration();
 		} catch (Exception e) {
 			LOG.severe("Loading configuration failed, " + e.getMessage());
 		}
+
+		// DB access
+		pool = new HQConnectionPool(HQConnectionPool.driverManager(connStr, userName, password),
+				DB_PoolSize, DB_MaxLifeMillis, DB_ValidateIdleMillis, DB_ValidateTimeoutSec, DB_QueryTimeoutSec, LOG);
+		dbExecutor = new ThreadPoolExecutor(DB_PoolSize, DB_PoolSize, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(DB_QueueSize), new DefaultThreadFactory("hq-candle-db", true));
+		dbExecutor.allowCoreThreadTimeOut(true);
 	}
 
-	public void updateDominantInstrument(MarketData md) {
-		Matcher m = patt.matcher(md.InstrumentID);
-        if (!m.find()) {
+	public void destroy() {
+		saveDominantInstruments();
+		store.close();
+		dbExecutor.shutdown();
+		pool.close();
+	}
+
+	/**
+	 * Update dominant instrument of product, the one of max open interest.
+	 * @param id instrument id, see {@link HQInstruments}
+	 */
+	public void updateDominantInstrument(int id, MarketData md) {
+		// Product is found once when instrument id is assigned
+		int pid = instruments.productOf(id);
+		if (pid < 0) {
 			return;
 		}
 
-		// Find product id
-        String pid = md.InstrumentID.substring(m.start(), m.end());
-		if (!domiInsts.containsKey(pid) || domiOpenIns.get(pid) < md.OpenInterest) {
-			domiInsts.put(pid, md.InstrumentID);
-			domiOpenIns.put(pid, md.OpenInterest);
+		Dominant d = domiInsts.get(pid);
+		if (d == null) {
+			domiInsts.putIfAbsent(pid, new Dominant());
+			d = domiInsts.get(pid);
+		}
+		synchronized (d) {
+			if (d.instrument < 0 || d.openInterest < md.OpenInterest) {
+				d.instrument = id;
+				d.openInterest = md.OpenInterest;
+			}
 		}
 	}
 
 	public String getDominantInstrument(String productID) {
-		if (!domiInsts.containsKey(productID)) {
+		Dominant d = domiInsts.get(instruments.findProduct(productID));
+		if (d == null) {
 			return "";
-		} else {
-			return domiInsts.get(productID);
+		}
+		synchronized (d) {
+			return d.instrument < 0 ? "" : instruments.nameOf(d.instrument);
 		}
 	}
 
-    private void connectDatabase() throws SQLException {
-        // Check if we need re-connect
-        long cur = System.currentTimeMillis();
-        if (cur - _LastAccessDB > HQDataKeeper.reconnectMillis) {
-            resetDatabase();
-            _LastAccessDB = cur;
-            return;
-        }
-    }
+	/**
+	 * Dominant instruments of all products.
+	 */
+	public List<String> getDominantInstruments() {
+		List<String> ret = new ArrayList<String>();
+		for (int pid = 0, n = instruments.productSize(); pid < n; ++pid) {
+			Dominant d = domiInsts.get(pid);
+			if (d == null) {
+				continue;
+			}
+			synchronized (d) {
+				if (d.instrument >= 0) {
+					ret.add(instruments.nameOf(d.instrument));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Dominant instruments saved by the last run, for warm-up.
+	 */
+	public List<String> loadDominantInstruments() {
+		List<String> ret = new ArrayList<String>();
+		File f = new File(CandleStore_Dir, Warmup_DominantFile);
+		if (!f.exists()) {
+			return ret;
+		}
+
+		try (InputStream is = new FileInputStream(f)) {
+			JSONArray arr = new JSONArray(new JSONTokener(is));
+			for (int i = 0; i < arr.length(); ++i) {
+				ret.add(arr.getString(i));
+			}
+		} catch (IOException | JSONException e) {
+			LOG.warning("Loading dominant instruments failed, " + e.getMessage());
+		}
+		return ret;
+	}
+
+	protected void saveDominantInstruments() {
+		List<String> l = getDominantInstruments();
+		if (l.size() < 1) {
+			return;
+		}
+
+		File f = new File(CandleStore_Dir, Warmup_DominantFile);
+		f.getParentFile().mkdirs();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+			w.write(new JSONArray(l).toString());
+		} catch (IOException e) {
+			LOG.warning("Saving dominant instruments failed, " + e.getMessage());
+		}
+	}
+
+	static class Dominant {
+		// Instrument id of max open interest
+		int instrument = -1;
+		double openInterest;
+	}
 
     private void loadConfiguration() throws Exception {
 		JSONObject obj = Common.LoadJSONObject(Constants.class.getResourceAsStream("candledb_addr.json"));
@@ -294,30 +702,13 @@ public class HQDataKeeper {
         Class.forName("com.mysql.cj.jdbc.Driver").newInstance();
     }
 
-    private void initDatabase() throws SQLException {
-        connDB = DriverManager.getConnection(connStr, userName, password);
-        statementDB = connDB.prepareStatement(querySql);
-    }
-
-    private void resetDatabase() throws SQLException {
-        if (connDB == null || connDB.isClosed()) {
-            initDatabase();
-            return;
-        }
-        if (statementDB != null && !statementDB.isClosed()) {
-            statementDB.close();
-        }
-        connDB.close();
-        initDatabase();
-    }
-
 	class InstCandlePack {
 		/*
 		 * Older data to left, newer data to right. Send data client in this order,
 		 * so client will receive older data earlier than newer.
-		 * Candle cache, key: period in minutes, value: candle list
+		 * Candle cache, key: period in minutes, value: candle columns
 		 */
-        HashMap<Integer, ConcurrentSkipListSet<Candle>> candles;
+        HashMap<Integer, HQCandleColumns> candles;
 
 		// Market data cache
 		LinkedList<MarketData> mds;
@@ -328,16 +719,24 @@ public class HQDataKeeper {
 		// has been updated from db
         ConcurrentHashMap<Integer, Boolean> hasFetchedDB;
 
+		// has loaded the oldest candle
+		ConcurrentHashMap<Integer, Boolean> hasReachedFirst;
+
+		// 1m candles of the oldest bucket of derived period, not derived yet
+		ConcurrentHashMap<Integer, List<Candle>> partialBuckets;
+
 		public InstCandlePack() {
 			wrLock = new ReentrantReadWriteLock();
 			wrLock0 = new ReentrantReadWriteLock();
 
 			// container
 			mds = new LinkedList<MarketData>();
-            candles = new HashMap<Integer, ConcurrentSkipListSet<Candle>>();
+            candles = new HashMap<Integer, HQCandleColumns>();
 
             // hasn't fetched data from DB
             this.hasFetchedDB = new ConcurrentHashMap<Integer, Boolean>();
+            this.hasReachedFirst = new ConcurrentHashMap<Integer, Boolean>();
+            this.partialBuckets = new ConcurrentHashMap<Integer, List<Candle>>();
 		}
 
 		/**
@@ -348,29 +747,13 @@ public class HQDataKeeper {
 		 * @return Candle list
 		 */
 		public List<Candle> queryCandle(int period, int reversedNumber) {
-			// Always return an instance, prohibit null exception
-            LinkedList<Candle> ret = new LinkedList<Candle>();
-
 			// Sync
 			wrLock.readLock().lock();
 
-			// Get candles in the period
-			if (candles.containsKey(period)) {
-                ConcurrentSkipListSet<Candle> lst = candles.get(period);
-				if (lst.size() < 1) {
-					wrLock.readLock().unlock();
-					return ret;
-				}
-
-				// Calculate the number of candles return
-				int len = Math.min(lst.size(), reversedNumber);
-
-                // sub_set([inclusive], [exclusive])
-                Iterator<Candle> desc_iter = lst.descendingIterator();
-                while (--len >= 0 && desc_iter.hasNext()) {
-                    ret.addFirst(desc_iter.next());
-                }
-			}
+			// Get the newest candles in the period
+			// Always return an instance, prohibit null exception
+			HQCandleColumns cols = candles.get(period);
+			List<Candle> ret = cols != null ? cols.last(reversedNumber) : new LinkedList<Candle>();
 
 			// unlock
 			wrLock.readLock().unlock();
@@ -385,20 +768,127 @@ public class HQDataKeeper {
             return this.hasFetchedDB.containsKey(period) && this.hasFetchedDB.get(period);
 		}
 
-		public void insertCandle(Candle Cnd) {
+		public void hasReachedFirst(int period, boolean h) {
+			this.hasReachedFirst.put(period, h);
+		}
+
+		public boolean hasReachedFirst(int period) {
+			return this.hasReachedFirst.containsKey(period) && this.hasReachedFirst.get(period);
+		}
+
+		public void partialBucket(int period, List<Candle> lst) {
+			this.partialBuckets.put(period, lst);
+		}
+
+		public List<Candle> partialBucket(int period) {
+			List<Candle> lst = this.partialBuckets.get(period);
+			return lst != null ? lst : new ArrayList<Candle>();
+		}
+
+		public int candleCount(int period) {
+			wrLock.readLock().lock();
+			HQCandleColumns cols = candles.get(period);
+			int n = cols != null ? cols.size() : 0;
+			wrLock.readLock().unlock();
+			return n;
+		}
+
+		/**
+		 * Serial number of the oldest candle, Long.MAX_VALUE if no candle.
+		 */
+		public long firstSerial(int period) {
+			wrLock.readLock().lock();
+			HQCandleColumns cols = candles.get(period);
+			long k = cols != null && cols.size() > 0 ? cols.keyAt(0) : Long.MAX_VALUE;
+			wrLock.readLock().unlock();
+			return k;
+		}
+
+		/**
+		 * Serial number of the newest candle, Long.MIN_VALUE if no candle.
+		 */
+		public long lastSerial(int period) {
+			wrLock.readLock().lock();
+			HQCandleColumns cols = candles.get(period);
+			long k = cols != null && cols.size() > 0 ? cols.keyAt(cols.size() - 1) : Long.MIN_VALUE;
+			wrLock.readLock().unlock();
+			return k;
+		}
+
+		/**
+		 * Insert candle.
+		 * @param Cnd candle
+		 * @return true if candles have changed
+		 */
+		public boolean insertCandle(Candle Cnd) {
 			// Sync
 			wrLock.writeLock().lock();
 
-			// Create candle list if not exists
-			if (!candles.containsKey(Cnd.Period)) {
-                candles.put(Cnd.Period, new ConcurrentSkipListSet<Candle>());
-			}
+            // Insert candle by serial number, older data to left and newer to right.
+            // Candle of the same serial number is replaced.
+            boolean changed = columnsOf(Cnd.Period).insert(Cnd);
 
-            // Insert candles to sorted set
-            // The candle provides comparable interface that put older data to left and newer to right.
-            candles.get(Cnd.Period).add(Cnd);
+			wrLock.writeLock().unlock();
+			return changed;
+		}
 
+		/**
+		 * Merge candles loaded from DB, cached candles are kept.
+		 * @param period Period in minutes
+		 * @param lst candles
+		 * @return true if candles have changed
+		 */
+		public boolean mergeCandles(int period, List<Candle> lst) {
+			wrLock.writeLock().lock();
+			boolean changed = columnsOf(period).merge(lst);
 			wrLock.writeLock().unlock();
+			return changed;
+		}
+
+		/**
+		 * Derive candle of the newest bucket from 1m candles.
+		 * @return derived candle, null if it hasn't changed
+		 */
+		public Candle deriveCandle(HQCandleAggregator agg, int period) {
+			wrLock.writeLock().lock();
+			HQCandleColumns m1 = candles.get(Candle_1m);
+			Candle d = m1 != null ? agg.deriveLast(m1, period) : null;
+			if (d != null && !columnsOf(period).insert(d)) {
+				d = null;
+			}
+			wrLock.writeLock().unlock();
+			return d;
+		}
+
+		/**
+		 * Replace candles of period with candles derived from all cached 1m candles.
+		 * @param complete true if no 1m candles are older than the cached
+		 * @return 1m candles of the oldest bucket if it's not derived, or empty
+		 */
+		public List<Candle> deriveCandles(HQCandleAggregator agg, int period, boolean complete) {
+			wrLock.writeLock().lock();
+			HQCandleColumns m1 = candles.get(Candle_1m);
+			HQCandleColumns cols = new HQCandleColumns(CandleColumns_InitCapacity, CandleColumns_MaxCapacity);
+			List<Candle> partial = new ArrayList<Candle>();
+			if (m1 != null) {
+				cols.merge(agg.deriveAll(m1, period, complete));
+				if (!complete) {
+					partial = agg.firstBucket(m1, period);
+				}
+			}
+			candles.put(period, cols);
+			wrLock.writeLock().unlock();
+			return partial;
+		}
+
+		protected HQCandleColumns columnsOf(int period) {
+			// Create candle columns if not exists
+			HQCandleColumns cols = candles.get(period);
+			if (cols == null) {
+				cols = new HQCandleColumns(CandleColumns_InitCapacity, CandleColumns_MaxCapacity);
+				candles.put(period, cols);
+			}
+			return cols;
 		}
 
 		public List<MarketData> queryMarketData(int Number) {
@@ -429,6 +919,20 @@ public class HQDataKeeper {
 			wrLock0.writeLock().unlock();
 		}
 
+		public long estimatedBytes() {
+			long n = 0;
+			wrLock.readLock().lock();
+			for (HQCandleColumns cols : candles.values()) {
+				n += cols.estimatedBytes();
+			}
+			wrLock.readLock().unlock();
+
+			wrLock0.readLock().lock();
+			n += (long) mds.size() * Cache_MarketDataBytes;
+			wrLock0.readLock().unlock();
+			return n;
+		}
+
 		public Set<Integer> getCandlePeriods() {
 			HashSet<Integer> ret = new HashSet<Integer>();
 			ret.addAll(candles.keySet());
@@ -0,0 +1,208 @@
+package flyingbot.it.hq.ws.system;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Public field layout of a transferred data class, e.g. MarketData and Candle.
+ * <p>
+ * Fields are resolved once by reflection and cached per class, so codecs can read
+ * and write field values directly without building JSON trees. Only fields of
+ * String, boolean, integral and double types are part of the schema.
+ */
+public class HQDataSchema {
+    // Field kinds
+    public final static int Kind_String = 0;
+    public final static int Kind_Int = 1;
+    public final static int Kind_Long = 2;
+    public final static int Kind_Double = 3;
+    public final static int Kind_Boolean = 4;
+
+    // Schema cache
+    private static ConcurrentHashMap<Class<?>, HQDataSchema> schemas = new ConcurrentHashMap<>();
+
+    // Data class
+    Class<?> type;
+
+    // Fields and their kinds, same index
+    Field[] fields;
+    int[] kinds;
+
+    // Field name -> index
+    HashMap<String, Integer> index;
+
+    protected HQDataSchema(Class<?> type) {
+        this.type = type;
+
+        List<Field> lst = new ArrayList<>();
+        List<Integer> kl = new ArrayList<>();
+        for (Field f : type.getFields()) {
+            int m = f.getModifiers();
+            if (Modifier.isStatic(m) || Modifier.isFinal(m)) {
+                continue;
+            }
+
+            int k = kindOf(f.getType());
+            if (k < 0) {
+                continue;
+            }
+
+            lst.add(f);
+            kl.add(k);
+        }
+
+        fields = lst.toArray(new Field[0]);
+        kinds = new int[kl.size()];
+        index = new HashMap<>();
+        for (int i = 0; i < fields.length; ++i) {
+            kinds[i] = kl.get(i);
+            index.put(fields[i].getName(), i);
+        }
+    }
+
+    /**
+     * Get schema for the class, it is created on first call and cached.
+     *
+     * @param type data class
+     * @return schema
+     */
+    public static HQDataSchema of(Class<?> type) {
+        HQDataSchema s = schemas.get(type);
+        if (s == null) {
+            s = new HQDataSchema(type);
+            HQDataSchema prev = schemas.putIfAbsent(type, s);
+            if (prev != null) {
+                s = prev;
+            }
+        }
+        return s;
+    }
+
+    protected static int kindOf(Class<?> c) {
+        if (c == String.class) {
+            return Kind_String;
+        } else if (c == int.class || c == short.class || c == byte.class) {
+            return Kind_Int;
+        } else if (c == long.class) {
+            return Kind_Long;
+        } else if (c == double.class) {
+            return Kind_Double;
+        } else if (c == boolean.class) {
+            return Kind_Boolean;
+        } else {
+            return -1;
+        }
+    }
+
+    public Class<?> type() {
+        return type;
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    /**
+     * Find field index by name.
+     *
+     * @param name field name
+     * @return index, or -1 if the field is not in schema
+     */
+    public int indexOf(String name) {
+        Integer i = index.get(name);
+        return i == null ? -1 : i;
+    }
+
+    public String name(int i) {
+        return fields[i].getName();
+    }
+
+    public int kind(int i) {
+        return kinds[i];
+    }
+
+    public Object newInstance() {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Create " + type.getSimpleName() + " failed, " + e.getMessage());
+        }
+    }
+
+    public String getString(Object o, int i) {
+        try {
+            return (String) fields[i].get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public long getLong(Object o, int i) {
+        try {
+            return fields[i].getLong(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public double getDouble(Object o, int i) {
+        try {
+            return fields[i].getDouble(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public boolean getBoolean(Object o, int i) {
+        try {
+            return fields[i].getBoolean(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public void setString(Object o, int i, String v) {
+        try {
+            fields[i].set(o, v);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public void setLong(Object o, int i, long v) {
+        try {
+            Class<?> c = fields[i].getType();
+            if (c == long.class) {
+                fields[i].setLong(o, v);
+            } else if (c == int.class) {
+                fields[i].setInt(o, (int) v);
+            } else if (c == short.class) {
+                fields[i].setShort(o, (short) v);
+            } else {
+                fields[i].setByte(o, (byte) v);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public void setDouble(Object o, int i, double v) {
+        try {
+            fields[i].setDouble(o, v);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public void setBoolean(Object o, int i, boolean v) {
+        try {
+            fields[i].setBoolean(o, v);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.util.Result;
+
+/**
+ * Receiver of market data decoded from inside feed.
+ */
+public interface HQDataSink {
+    /**
+     * Get dense id of instrument, the decoder resolves it once per data. New
+     * instruments are registered, so only data of inside feed may call it.
+     *
+     * @param inst instrument id
+     * @return id, see {@link HQInstruments}
+     */
+    int instrumentId(String inst);
+
+    /**
+     * Process new market data.
+     *
+     * @param id instrument id, see {@link #instrumentId(String)}
+     * @param d  market data
+     * @return result
+     */
+    Result onMarketData(int id, MarketData d);
+
+    /**
+     * Process new candle.
+     *
+     * @param id instrument id, see {@link #instrumentId(String)}
+     * @param c  candle
+     * @return result
+     */
+    Result onCandle(int id, Candle c);
+}
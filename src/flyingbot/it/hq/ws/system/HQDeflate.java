@@ -0,0 +1,328 @@
+package flyingbot.it.hq.ws.system;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CodecException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static flyingbot.it.hq.ws.resources.Constants.Deflate_Level;
+import static flyingbot.it.hq.ws.resources.Constants.Deflate_Threshold;
+import static flyingbot.it.hq.ws.resources.Constants.HTTP_MaxContentLength;
+
+/**
+ * WebSocket permessage-deflate (RFC 7692) for server.
+ * <p>
+ * The server always compresses without context takeover, every compressed message
+ * is independent. So a message compressed once, e.g. history candles, can be
+ * cached and sent to any client as is, in frame with RSV1 set. Messages smaller
+ * than {@link flyingbot.it.hq.ws.resources.Constants#Deflate_Threshold} are not
+ * compressed.
+ */
+public class HQDeflate {
+    // Extension name and parameters
+    final static String ExtensionName = "permessage-deflate";
+    final static String ServerNoContext = "server_no_context_takeover";
+    final static String ClientNoContext = "client_no_context_takeover";
+    final static String ServerMaxWindow = "server_max_window_bits";
+    final static String ClientMaxWindow = "client_max_window_bits";
+
+    // Java deflater uses max window
+    final static int MaxWindowBits = 15;
+
+    // Max length of stored block
+    final static int MaxStoredLength = 0xffff;
+
+    // Tail of sync flush, removed from message
+    final static byte[] FlushTail = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    /**
+     * Test if channel has negotiated permessage-deflate.
+     *
+     * @param c channel
+     * @return true if compressed frames can be sent
+     */
+    public static boolean isEnabled(Channel c) {
+        return c.pipeline().get(Encoder.class) != null;
+    }
+
+    /**
+     * Compress message payload.
+     *
+     * @param alloc allocator
+     * @param in    payload, not released
+     * @return compressed payload, caller owns the buffer
+     */
+    public static ByteBuf compress(ByteBufAllocator alloc, ByteBuf in) {
+        Deflater d = new Deflater(Deflate_Level, true);
+        try {
+            return compress(d, alloc, in);
+        } finally {
+            d.end();
+        }
+    }
+
+    protected static ByteBuf compress(Deflater d, ByteBufAllocator alloc, ByteBuf in) {
+        int len = in.readableBytes();
+        if (in.hasArray()) {
+            d.setInput(in.array(), in.arrayOffset() + in.readerIndex(), len);
+        } else {
+            d.setInput(ByteBufUtil.getBytes(in));
+        }
+
+        ByteBuf out = alloc.heapBuffer(len / 2 + 64);
+        try {
+            int n;
+            do {
+                out.ensureWritable(256);
+                int space = out.writableBytes();
+                n = d.deflate(out.array(), out.arrayOffset() + out.writerIndex(), space, Deflater.SYNC_FLUSH);
+                out.writerIndex(out.writerIndex() + n);
+                if (n < space) {
+                    break;
+                }
+            } while (true);
+
+            // Remove sync flush tail
+            out.writerIndex(out.writerIndex() - FlushTail.length);
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap payload in a stored, uncompressed deflate block. Compressed payloads
+     * end on byte boundary and don't refer to data before them, so a stored
+     * block followed by a payload from {@link #compress(ByteBufAllocator, ByteBuf)}
+     * is still a valid message, e.g. a message head put before a cached body.
+     *
+     * @param alloc allocator
+     * @param in    payload, at most 65535 bytes, not released
+     * @return stored block, caller owns the buffer
+     */
+    public static ByteBuf store(ByteBufAllocator alloc, ByteBuf in) {
+        int len = in.readableBytes();
+        if (len > MaxStoredLength) {
+            throw new IllegalArgumentException("Stored block over " + MaxStoredLength + " bytes");
+        }
+
+        ByteBuf out = alloc.heapBuffer(5 + len);
+        // Not final, type 0, padded to byte
+        out.writeByte(0);
+        out.writeShortLE(len);
+        out.writeShortLE(~len);
+        out.writeBytes(in, in.readerIndex(), len);
+        return out;
+    }
+
+    /**
+     * Create frame of the same type as the given frame.
+     */
+    protected static WebSocketFrame frame(WebSocketFrame src, int rsv, ByteBuf content) {
+        if (src instanceof TextWebSocketFrame) {
+            return new TextWebSocketFrame(src.isFinalFragment(), rsv, content);
+        } else if (src instanceof BinaryWebSocketFrame) {
+            return new BinaryWebSocketFrame(src.isFinalFragment(), rsv, content);
+        } else {
+            return new ContinuationWebSocketFrame(src.isFinalFragment(), rsv, content);
+        }
+    }
+
+    public static class Handshaker implements WebSocketServerExtensionHandshaker {
+
+        @Override
+        public WebSocketServerExtension handshakeExtension(WebSocketExtensionData data) {
+            if (!ExtensionName.equals(data.name())) {
+                return null;
+            }
+
+            for (Map.Entry<String, String> p : data.parameters().entrySet()) {
+                String key = p.getKey();
+                if (ServerMaxWindow.equals(key)) {
+                    // Can't compress with smaller window
+                    if (p.getValue() != null && Integer.parseInt(p.getValue()) < MaxWindowBits) {
+                        return null;
+                    }
+                } else if (!ServerNoContext.equals(key) && !ClientNoContext.equals(key)
+                        && !ClientMaxWindow.equals(key)) {
+                    // Unknown parameter, decline
+                    return null;
+                }
+            }
+            return new Extension();
+        }
+    }
+
+    static class Extension implements WebSocketServerExtension {
+
+        @Override
+        public int rsv() {
+            return RSV1;
+        }
+
+        @Override
+        public WebSocketExtensionEncoder newExtensionEncoder() {
+            return new Encoder();
+        }
+
+        @Override
+        public WebSocketExtensionDecoder newExtensionDecoder() {
+            return new Decoder();
+        }
+
+        @Override
+        public WebSocketExtensionData newReponseData() {
+            return new WebSocketExtensionData(ExtensionName,
+                    Collections.<String, String>singletonMap(ServerNoContext, null));
+        }
+    }
+
+    static class Encoder extends WebSocketExtensionEncoder {
+        // Deflater of channel, reset for each message
+        Deflater deflater;
+
+        @Override
+        public boolean acceptOutboundMessage(Object msg) throws Exception {
+            if (!(msg instanceof TextWebSocketFrame) && !(msg instanceof BinaryWebSocketFrame)) {
+                return false;
+            }
+
+            // Small, fragmented or already compressed messages are sent as is
+            WebSocketFrame f = (WebSocketFrame) msg;
+            return f.isFinalFragment() && (f.rsv() & WebSocketExtension.RSV1) == 0
+                    && f.content().readableBytes() >= Deflate_Threshold;
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, WebSocketFrame msg, List<Object> out) throws Exception {
+            if (deflater == null) {
+                deflater = new Deflater(Deflate_Level, true);
+            }
+
+            deflater.reset();
+            ByteBuf c = compress(deflater, ctx.alloc(), msg.content());
+            out.add(frame(msg, msg.rsv() | WebSocketExtension.RSV1, c));
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+            super.handlerRemoved(ctx);
+        }
+    }
+
+    static class Decoder extends WebSocketExtensionDecoder {
+        // Inflater keeps client context across messages
+        Inflater inflater;
+
+        // In a compressed fragmented message
+        boolean compressed;
+
+        // Inflated bytes of current message
+        int inflated;
+
+        @Override
+        public boolean acceptInboundMessage(Object msg) throws Exception {
+            if (msg instanceof ContinuationWebSocketFrame) {
+                return compressed;
+            }
+            if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+                return (((WebSocketFrame) msg).rsv() & WebSocketExtension.RSV1) != 0;
+            }
+            return false;
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, WebSocketFrame msg, List<Object> out) throws Exception {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+
+            // Append sync flush tail on the last fragment
+            byte[] in = ByteBufUtil.getBytes(msg.content());
+            if (msg.isFinalFragment()) {
+                byte[] tmp = new byte[in.length + FlushTail.length];
+                System.arraycopy(in, 0, tmp, 0, in.length);
+                System.arraycopy(FlushTail, 0, tmp, in.length, FlushTail.length);
+                in = tmp;
+            }
+            inflater.setInput(in);
+
+            // New message
+            if (!compressed) {
+                inflated = 0;
+            }
+
+            ByteBuf c = ctx.alloc().heapBuffer(Math.min(in.length * 2, HTTP_MaxContentLength));
+            try {
+                while (true) {
+                    c.ensureWritable(256);
+                    int n = inflater.inflate(c.array(), c.arrayOffset() + c.writerIndex(), c.writableBytes());
+                    c.writerIndex(c.writerIndex() + n);
+
+                    // Message inflated too large, e.g. a deflate bomb
+                    inflated += n;
+                    if (inflated > HTTP_MaxContentLength) {
+                        throw new TooLongFrameException("Inflated WebSocket message over "
+                                + HTTP_MaxContentLength + " bytes");
+                    }
+
+                    // Client must not use preset dictionary, inflater would never progress
+                    if (inflater.needsDictionary()) {
+                        throw new CodecException("Inflating WebSocket frame needs dictionary");
+                    }
+                    if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                c.release();
+                failed(ctx);
+                throw new CodecException("Inflating WebSocket frame failed", e);
+            } catch (CodecException e) {
+                c.release();
+                failed(ctx);
+                throw e;
+            }
+
+            compressed = !msg.isFinalFragment();
+            out.add(frame(msg, msg.rsv() & ~WebSocketExtension.RSV1, c));
+        }
+
+        /**
+         * Client context is lost after a failed frame, so channel is closed.
+         */
+        protected void failed(ChannelHandlerContext ctx) {
+            compressed = false;
+            ctx.close();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+            super.handlerRemoved(ctx);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.util.Result;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Dispatch decoded data to shards by instrument.
+ * <p>
+ * Each instrument id belongs to one shard, and each shard has one thread and a
+ * bounded queue, so data of an instrument is cached, built into candles and sent
+ * in the order it is received, whichever feeder session it comes from. Ids are
+ * dense, so shards are balanced by id modulo shard number.
+ * <p>
+ * Feeder IO threads never block. When a shard queue is above its high water mark,
+ * feeders stop reading until all shard queues drain below the low water mark, then
+ * feeders are slowed down by TCP flow control instead of queuing in memory. A queue
+ * exceeds the high water mark by at most the data read before feeders stop.
+ */
+public class HQDispatcher implements HQDataSink {
+    // Data are sent to this sink on shard threads
+    HQDataSink sink;
+
+    // Shards
+    Shard[] shards;
+
+    // Stop reading from feeders above high water, resume below low water
+    int highWater, lowWater;
+
+    // Feeders not reading
+    Set<Channel> paused;
+
+    // Posts periodic tasks to shards
+    ScheduledExecutorService timer;
+
+    // Logger instance
+    Logger LOG;
+
+    public HQDispatcher(HQDataSink sink, int shardNum, int queueSize, Logger log) {
+        this.sink = sink;
+        this.LOG = log;
+        this.highWater = Math.max(1, queueSize);
+        this.lowWater = highWater / 2;
+        this.paused = ConcurrentHashMap.newKeySet();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("hq-dispatch-timer", true));
+        this.shards = new Shard[Math.max(1, shardNum)];
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = new Shard(i);
+            shards[i].start();
+        }
+    }
+
+    @Override
+    public int instrumentId(String inst) {
+        return sink.instrumentId(inst);
+    }
+
+    @Override
+    public Result onMarketData(int id, MarketData d) {
+        return shardOf(id).put(new Event(id, d));
+    }
+
+    @Override
+    public Result onCandle(int id, Candle c) {
+        return shardOf(id).put(new Event(id, c));
+    }
+
+    /**
+     * Run task on each shard thread, after data queued before it. Shard of index i
+     * has instruments i, i + n, i + 2n and so on, n is the number of shards.
+     */
+    public void execute(ShardTask task) {
+        for (Shard s : shards) {
+            s.queue.offer(new Event(s.index, task));
+        }
+    }
+
+    /**
+     * Run task on each shard thread periodically, see {@link #execute(ShardTask)}.
+     *
+     * @param task   task
+     * @param millis interval in milliseconds
+     */
+    public void schedule(final ShardTask task, long millis) {
+        timer.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                execute(task);
+            }
+
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop reading from feeder if shards are behind, it resumes when they drain.
+     * Called on feeder's IO thread after data are dispatched.
+     */
+    public void throttle(Channel feeder) {
+        if (!isAbove(highWater)) {
+            return;
+        }
+
+        feeder.config().setAutoRead(false);
+        paused.add(feeder);
+
+        // Shards may have drained before feeder is added
+        resumeIfDrained();
+    }
+
+    protected void resumeIfDrained() {
+        if (paused.isEmpty() || isAbove(lowWater)) {
+            return;
+        }
+
+        Iterator<Channel> iter = paused.iterator();
+        while (iter.hasNext()) {
+            Channel c = iter.next();
+            iter.remove();
+            c.config().setAutoRead(true);
+        }
+    }
+
+    protected boolean isAbove(int water) {
+        for (Shard s : shards) {
+            if (s.queue.size() > water) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected Shard shardOf(int id) {
+        return shards[id % shards.length];
+    }
+
+    /**
+     * Stop shards after queued data are processed.
+     */
+    public void destroy() {
+        timer.shutdown();
+        for (Shard s : shards) {
+            s.running = false;
+        }
+        for (Shard s : shards) {
+            try {
+                s.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public String stats() {
+        StringBuilder sb = new StringBuilder("dispatched:");
+        for (Shard s : shards) {
+            sb.append(' ').append(s.count.get()).append('/').append(s.queue.size());
+        }
+        return sb.append(", paused feeders: ").append(paused.size()).toString();
+    }
+
+    /**
+     * Task run on shard thread.
+     */
+    public interface ShardTask {
+        void run(int shard, int shardNum);
+    }
+
+    static class Event {
+        int id;
+        Object data;
+
+        Event(int id, Object data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    class Shard extends Thread {
+        // Queued data, bounded by pausing feeders
+        LinkedBlockingQueue<Event> queue;
+
+        // Processed data
+        AtomicLong count;
+
+        int index;
+
+        volatile boolean running;
+
+        Shard(int index) {
+            super("hq-dispatch-" + index);
+            setDaemon(true);
+            this.index = index;
+            this.queue = new LinkedBlockingQueue<>();
+            this.count = new AtomicLong(0);
+            this.running = true;
+        }
+
+        Result put(Event e) {
+            // Never blocks IO thread, feeders are throttled instead
+            if (!queue.offer(e)) {
+                return new Result(Result.Error, -1, "Dispatching data failed, queue is full.");
+            }
+            return new Result();
+        }
+
+        @Override
+        public void run() {
+            List<Event> batch = new ArrayList<>();
+            while (running || !queue.isEmpty()) {
+                try {
+                    Event e = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (e == null) {
+                        continue;
+                    }
+
+                    // Take queued data in batch
+                    batch.add(e);
+                    queue.drainTo(batch);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+
+                for (Event e : batch) {
+                    dispatch(e);
+                }
+                count.addAndGet(batch.size());
+                batch.clear();
+
+                // Let paused feeders read again
+                resumeIfDrained();
+            }
+        }
+
+        protected void dispatch(Event e) {
+            try {
+                Result r;
+                if (e.data instanceof ShardTask) {
+                    ((ShardTask) e.data).run(e.id, shards.length);
+                    return;
+                } else if (e.data instanceof MarketData) {
+                    r = sink.onMarketData(e.id, (MarketData) e.data);
+                } else {
+                    r = sink.onCandle(e.id, (Candle) e.data);
+                }
+                if (r.equals(Result.Error)) {
+                    LOG.warning("Sending data failed, " + r.Message);
+                }
+            } catch (RuntimeException ex) {
+                // Keep shard alive
+                LOG.severe("Dispatching data failed, " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -1,33 +1,48 @@
 package flyingbot.it.hq.ws.system;
 
-import flyingbot.it.data.hq.Candle;
-import flyingbot.it.data.hq.MarketData;
 import flyingbot.it.hq.ws.resources.Constants;
-import flyingbot.it.net.tcp.SocketDuplex;
 import flyingbot.it.util.Common;
 import flyingbot.it.util.Result;
-import org.json.JSONArray;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.ipfilter.AbstractRemoteAddressFilter;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.Charset;
-import java.util.HashSet;
 
 import static flyingbot.it.hq.ws.resources.Constants.*;
 
-public class HQInsideServer implements Runnable {
+/**
+ * Inside market data server, receives JSON market data and candles from feeders.
+ * Feeders may also switch their sessions to binary format, see {@link HQBinaryReader}.
+ * <p>
+ * All feeders share a small event loop group, adding feeders doesn't add threads.
+ * Each message is framed with a 4-byte big-endian length prefix. Frames are
+ * decoded on the IO thread and handed to {@link HQDispatcher}, and a feeder sending
+ * faster than we can process stops being read, so it's slowed down by TCP flow
+ * control instead of queuing in memory.
+ */
+public class HQInsideServer {
 	// Server context instance
 	HQServerContext svrCtx;
 
 	private int port = 0;
 
-	// Alive connection
-	private HashSet<SocketDuplex> connections;
+	// Event loops
+	private EventLoopGroup bossGroup, workerGroup;
+
+	// Alive connections, closed channels are removed automatically
+	private ChannelGroup connections;
 
 	protected int getListenPort() {
 		// Load JSON as stream
@@ -42,132 +57,183 @@ public class HQInsideServer implements Runnable {
 
 	public HQInsideServer(HQServerContext ctx) {
 		this.svrCtx = ctx;
-		this.connections = new HashSet<SocketDuplex>();
+		this.connections = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 		this.port = getListenPort();
 
 		// Run server
-		Common.GetSingletonExecSvc().execute(this);
+		start();
 	}
 
-	@SuppressWarnings("resource")
-	@Override
-	public void run() {
-		ServerSocket ss = null;
+	protected void start() {
+		bossGroup = new NioEventLoopGroup(1);
+		workerGroup = new NioEventLoopGroup(Inside_WorkerThreads);
+
+		ServerBootstrap bootstrap = new ServerBootstrap();
+		bootstrap.group(bossGroup, workerGroup);
+		bootstrap.channel(NioServerSocketChannel.class);
+		bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true);
+		bootstrap.childOption(ChannelOption.TCP_NODELAY, true);
+		bootstrap.childHandler(new ChannelInitializer<Channel>() {
+
+			@Override
+			protected void initChannel(Channel ch) throws Exception {
+				ChannelPipeline pipeline = ch.pipeline();
+				pipeline.addLast(new InsideIPFilter());
+				pipeline.addLast(new LengthFieldBasedFrameDecoder(Inside_MaxFrameLength,
+						0, Inside_LengthFieldSize, 0, Inside_LengthFieldSize));
+				pipeline.addLast(new LengthFieldPrepender(Inside_LengthFieldSize));
+				pipeline.addLast(new HQInsideSession());
+			}
+
+		});
 
 		// Listen on port
 		try {
-			ss = new ServerSocket(port);
+			bootstrap.bind(port).syncUninterruptibly();
 
 			// Log info
 			System.out.println("HQInside is listening on port: " + port);
 			svrCtx.LOG.info("HQInside is listening on port: " + port);
-		} catch (IOException e) {
+		} catch (Exception e) {
+			svrCtx.LOG.severe("HQInside listening on port " + port + " failed, " + e.getMessage());
 			Common.PrintException(e);
-			return;
 		}
+	}
 
-		while (true) {
-			try {
-				Socket s = ss.accept();
+	public void destroy() {
+		connections.close();
+		bossGroup.shutdownGracefully();
+		workerGroup.shutdownGracefully();
 
-				// Filter IP
-				InetSocketAddress addr = (InetSocketAddress) s.getRemoteSocketAddress();
-				String remoteIP = addr.getAddress().getHostAddress();
+		// Process queued data
+		svrCtx.dispatcher.destroy();
+	}
 
-				InputStream is = Constants.class.getResourceAsStream("ip.json");
-				if (!Common.VerifyIP(remoteIP, is)) {
-					svrCtx.LOG.warning("Declined connection from " + remoteIP);
-					s.close();
-					continue;
-				}
+	class InsideIPFilter extends AbstractRemoteAddressFilter<InetSocketAddress> {
 
-				// Accept connection and start session
-				connections.add(new HQInsideSession(s));
-			} catch (IOException e) {
-				svrCtx.LOG.warning("Accepting client connection error, " + e.getMessage());
-			}
+		@Override
+		protected boolean accept(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) throws Exception {
+			InputStream is = Constants.class.getResourceAsStream("ip.json");
+			return Common.VerifyIP(remoteAddress.getAddress().getHostAddress(), is);
+		}
+
+		@Override
+		protected ChannelFuture channelRejected(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
+			svrCtx.LOG.warning("Declined connection from " + remoteAddress.getAddress().getHostAddress());
+
+			// Channel is closed by filter
+			return null;
 		}
 	}
 
-	class HQInsideSession extends SocketDuplex {
+	class HQInsideSession extends SimpleChannelInboundHandler<ByteBuf> {
+
+		// JSON parser, one per session
+		HQJsonReader reader;
 
-		public HQInsideSession(Socket s) {
-			super(s);
+		// Binary decoder, created on hello
+		HQBinaryReader binReader;
+
+		// Scratch array for direct buffers
+		byte[] scratch;
+
+		public HQInsideSession() {
+			reader = new HQJsonReader();
+			scratch = new byte[4096];
 		}
 
 		@Override
-		public void OnConnect() {
-			svrCtx.LOG.info("Initiate inside market data session from " + GetInetAddress().getHostAddress());
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			connections.add(ctx.channel());
+			svrCtx.LOG.info("Initiate inside market data session from " + ctx.channel().remoteAddress());
+			super.channelActive(ctx);
 		}
 
 		@Override
-		public void OnStream(byte[] Data) {
-			// Encode the string in utf-8
-			String text = new String(Data, Charset.forName(WsIncomingCharset));
+		protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+			int len = msg.readableBytes();
+
+			// Empty frame as heartbeat
+			if (len < 1) {
+				return;
+			}
+
+			// Binary frames
+			if (HQBinaryReader.isBinary(msg)) {
+				onBinary(ctx, msg);
+				return;
+			}
+
+			// Parse from backing array, or copy direct buffer to reused array
+			byte[] data;
+			int off;
+			if (msg.hasArray()) {
+				data = msg.array();
+				off = msg.arrayOffset() + msg.readerIndex();
+			} else {
+				if (scratch.length < len) {
+					scratch = new byte[Math.max(len, scratch.length * 2)];
+				}
+				msg.getBytes(msg.readerIndex(), scratch, 0, len);
+				data = scratch;
+				off = 0;
+			}
 
-			// Decide the type of JSON
 			try {
-				// Parse JSON
+				// Parse JSON straight from bytes
 				// Compatible for both array and object
-				if (text.trim().startsWith("[")) {
-					JSONArray arr = new JSONArray(text);
-					onJSONArray(arr);
-				}
-				else if (text.trim().startsWith("{")) {
-					JSONObject o = new JSONObject(text);
-					onJSONObject(o);
-				}
-				else {
-					svrCtx.LOG.warning("Invalid JSON string, " + text);
+				Result res = reader.read(data, off, len, svrCtx.dispatcher);
+
+				// Process result
+				if (res.equals(Result.Error)) {
+					svrCtx.LOG.warning("Sending data failed, " + res.Message);
 				}
 			} catch (JSONException e) {
 				svrCtx.LOG.warning("Parsing JSON market data failed, " + e.getMessage());
 			}
 		}
 
-		@Override
-		public void OnDisconnect() {
-			svrCtx.LOG.info("Disconnnect inside market data session from " + GetInetAddress().getHostAddress());
-		}
-
-		@Override
-		public void OnHearbeatError(Result Reason) {
-		}
-
-		public void onJSONArray(JSONArray arr) {
-			if (arr.length() < 1) {
-				// empty array
-				svrCtx.LOG.warning("Received empty data array. ");
+		protected void onBinary(ChannelHandlerContext ctx, ByteBuf msg) {
+			if (binReader == null) {
+				binReader = new HQBinaryReader();
 			}
+			boolean hello = !binReader.hasHello();
+
+			try {
+				Result res = binReader.read(msg, svrCtx.dispatcher);
+				if (res.equals(Result.Error)) {
+					svrCtx.LOG.warning("Sending data failed, " + res.Message);
+				}
 
-			for (int i = 0; i < arr.length(); ++i) {
-				JSONObject o = arr.getJSONObject(i);
-				onJSONObject(o);
+				// Accept binary session
+				if (hello && binReader.hasHello()) {
+					ctx.writeAndFlush(ctx.alloc().buffer(4).writeIntLE(Binary_Magic));
+					svrCtx.LOG.info("Binary inside market data session from " + ctx.channel().remoteAddress());
+				}
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				svrCtx.LOG.warning("Decoding binary market data failed, " + e.getMessage());
 			}
 		}
 
-		public void onJSONObject(JSONObject o) {
-			Result res;
-
-			// Get type
-			String type = o.getString(MetadataTag);
-			switch (type) {
-			case MarketData.DataType:
-				res = svrCtx.subscribers.onMarketData(MarketData.Parse(o));
-				break;
-			case Candle.DataType:
-				res = svrCtx.subscribers.onCandle(Candle.Parse(o));
-				break;
-			default:
-				res = new Result(Result.Error, -1, "Unknown market data type, " + type);
-			}
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			super.channelRead(ctx, msg);
 
-			// Process result
-			if (res.equals(Result.Error)) {
-				svrCtx.LOG.warning("Sending data failed, " + res.Message);
-			}
+			// Stop reading while shards are behind
+			svrCtx.dispatcher.throttle(ctx.channel());
 		}
 
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			svrCtx.LOG.info("Disconnect inside market data session from " + ctx.channel().remoteAddress());
+			super.channelInactive(ctx);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			svrCtx.LOG.warning("Inside market data session error, " + ctx.channel() + ", " + cause.getMessage());
+			ctx.close();
+		}
 	}
 
 }
@@ -0,0 +1,181 @@
+package flyingbot.it.hq.ws.system;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instruments whose candles and ticks are cached, segmented LRU bounded by bytes.
+ * <p>
+ * A new instrument enters the probation segment, and is promoted to the protected
+ * segment when it is accessed again, so a burst of one-time subscriptions can't
+ * flush instruments that are used repeatedly. When the protected segment is over
+ * its share, its least recently used instruments go back to probation. When the
+ * cache is over budget, the least recently used instruments of probation are
+ * evicted first, then those of protected. All operations are O(1) per instrument.
+ * <p>
+ * Pinned instruments, e.g. those having subscribers, are never evicted, so their
+ * live data keep updating the cache. The cache may stay over budget if pinned
+ * instruments alone are over it.
+ * <p>
+ * Sizes are estimated by weigher on access, and again on {@link #trim()} as
+ * cached candles grow. Membership is read by id without lock, so the market data
+ * path can test it on every tick.
+ */
+public class HQInstrumentCache {
+    // Max bytes, and max bytes of protected segment
+    long budget, protectedBudget;
+
+    // Segments in access order, eldest first, value: estimated bytes
+    LinkedHashMap<Integer, Long> probation, protect;
+    long probationBytes, protectBytes;
+
+    // Membership by instrument id
+    HQInstruments.Table<Boolean> members;
+
+    // Estimate bytes of instrument
+    Weigher weigher;
+
+    // Instruments not to evict
+    Pinned pinned;
+
+    // Stats
+    long hits, misses, evictions;
+
+    public HQInstrumentCache(long budget, double protectedRatio, Weigher weigher, Pinned pinned) {
+        this.budget = budget;
+        this.protectedBudget = (long) (budget * protectedRatio);
+        this.weigher = weigher;
+        this.pinned = pinned;
+        this.probation = new LinkedHashMap<>(64, 0.75f, true);
+        this.protect = new LinkedHashMap<>(64, 0.75f, true);
+        this.members = new HQInstruments.Table<>();
+    }
+
+    /**
+     * Test if instrument is cached, without lock.
+     */
+    public boolean contains(int id) {
+        return members.get(id) != null;
+    }
+
+    /**
+     * Record access of instrument, add it if not cached.
+     *
+     * @param id instrument id
+     * @return evicted instrument ids, caller drops their data
+     */
+    public synchronized List<Integer> access(int id) {
+        long w = weigher.weigh(id);
+        Long old = protect.remove(id);
+        if (old != null) {
+            ++hits;
+            protectBytes += w - old;
+            protect.put(id, w);
+        } else if ((old = probation.remove(id)) != null) {
+            // Accessed again, promote
+            ++hits;
+            probationBytes -= old;
+            protect.put(id, w);
+            protectBytes += w;
+        } else {
+            ++misses;
+            probation.put(id, w);
+            probationBytes += w;
+            members.set(id, Boolean.TRUE);
+        }
+        return evict(id);
+    }
+
+    /**
+     * Estimate bytes of all cached instruments again, and evict if over budget.
+     *
+     * @return evicted instrument ids
+     */
+    public synchronized List<Integer> trim() {
+        probationBytes = reweigh(probation);
+        protectBytes = reweigh(protect);
+        return evict(-1);
+    }
+
+    public synchronized long usedBytes() {
+        return probationBytes + protectBytes;
+    }
+
+    public synchronized int size() {
+        return probation.size() + protect.size();
+    }
+
+    public synchronized String stats() {
+        return "instruments: " + size() + ", bytes: " + usedBytes() + "/" + budget
+                + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+    }
+
+    protected long reweigh(LinkedHashMap<Integer, Long> seg) {
+        long total = 0;
+        for (Map.Entry<Integer, Long> e : seg.entrySet()) {
+            long w = weigher.weigh(e.getKey());
+            e.setValue(w);
+            total += w;
+        }
+        return total;
+    }
+
+    /**
+     * Demote protected instruments over its share, then evict until in budget.
+     * The instrument just accessed is kept.
+     */
+    protected List<Integer> evict(int keep) {
+        Iterator<Map.Entry<Integer, Long>> iter = protect.entrySet().iterator();
+        while (protectBytes > protectedBudget && iter.hasNext()) {
+            Map.Entry<Integer, Long> e = iter.next();
+            if (e.getKey() == keep) {
+                continue;
+            }
+            iter.remove();
+            protectBytes -= e.getValue();
+            probation.put(e.getKey(), e.getValue());
+            probationBytes += e.getValue();
+        }
+
+        List<Integer> ret = new ArrayList<>();
+        evict(probation, keep, ret);
+        evict(protect, keep, ret);
+        return ret;
+    }
+
+    protected void evict(LinkedHashMap<Integer, Long> seg, int keep, List<Integer> evicted) {
+        Iterator<Map.Entry<Integer, Long>> iter = seg.entrySet().iterator();
+        while (usedBytes() > budget && iter.hasNext()) {
+            Map.Entry<Integer, Long> e = iter.next();
+            if (e.getKey() == keep || pinned.isPinned(e.getKey())) {
+                continue;
+            }
+            iter.remove();
+            if (seg == probation) {
+                probationBytes -= e.getValue();
+            } else {
+                protectBytes -= e.getValue();
+            }
+            members.set(e.getKey(), null);
+            evicted.add(e.getKey());
+            ++evictions;
+        }
+    }
+
+    /**
+     * Estimate bytes of cached data of instrument.
+     */
+    public interface Weigher {
+        long weigh(int id);
+    }
+
+    /**
+     * Test if instrument must stay cached.
+     */
+    public interface Pinned {
+        boolean isPinned(int id);
+    }
+}
@@ -0,0 +1,232 @@
+package flyingbot.it.hq.ws.system;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Symbol table of instruments.
+ * <p>
+ * Each instrument id gets a dense int id on first sight, and its product, e.g. rb
+ * of rb1901, gets a product id. Ids are never reused. The feed resolves the id
+ * once per data, then subscriptions and caches are looked up in {@link Table}
+ * by id instead of hashing strings.
+ * <p>
+ * Instruments named by clients are registered too, so clients can subscribe before
+ * the feed sends them, but they must look like an instrument id and their number
+ * is bounded, so client input can't grow the table.
+ */
+public class HQInstruments {
+    // Max ids, 1M
+    public final static int MaxIds = Table.ChunkSize * Table.ChunkSize;
+
+    // Ids by name
+    ConcurrentHashMap<String, Integer> ids, productIds;
+
+    // Names and products by id
+    Table<String> names;
+    Table<Integer> products;
+    int size, productSize;
+
+    // Ids registered by clients
+    int clientSize;
+
+    // Find product id from instrument id, and valid instrument id
+    Pattern patt, instPatt;
+
+    public HQInstruments() {
+        ids = new ConcurrentHashMap<>();
+        productIds = new ConcurrentHashMap<>();
+        names = new Table<>();
+        products = new Table<>();
+        patt = Pattern.compile("[a-zA-Z]+");
+        instPatt = Pattern.compile("[a-zA-Z]+[0-9]+");
+    }
+
+    /**
+     * Get id of instrument, a new id is assigned on first sight.
+     *
+     * @param inst instrument id
+     * @return dense id
+     */
+    public int idOf(String inst) {
+        Integer id = ids.get(inst);
+        return id != null ? id : register(inst, false);
+    }
+
+    /**
+     * Get id of instrument named by client, a new id is assigned if it looks like an
+     * instrument id and clients haven't registered too many.
+     *
+     * @return id, or -1 if instrument is invalid or can't be registered
+     */
+    public int clientIdOf(String inst) {
+        Integer id = ids.get(inst);
+        if (id != null) {
+            return id;
+        }
+        if (inst == null || !instPatt.matcher(inst).matches()) {
+            return -1;
+        }
+        return register(inst, true);
+    }
+
+    /**
+     * Get id of instrument without assigning new id.
+     *
+     * @return id, or -1 if instrument is never seen
+     */
+    public int find(String inst) {
+        Integer id = ids.get(inst);
+        return id != null ? id : -1;
+    }
+
+    public String nameOf(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Get product id of instrument.
+     *
+     * @return product id, or -1 if instrument id has no product
+     */
+    public int productOf(int id) {
+        Integer p = products.get(id);
+        return p != null ? p : -1;
+    }
+
+    /**
+     * Get id of product without assigning new id.
+     *
+     * @return id, or -1 if product is never seen
+     */
+    public int findProduct(String product) {
+        Integer id = productIds.get(product);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Number of ids, ids are in [0, size).
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Number of product ids, ids are in [0, productSize).
+     */
+    public synchronized int productSize() {
+        return productSize;
+    }
+
+    protected synchronized int register(String inst, boolean client) {
+        Integer id = ids.get(inst);
+        if (id != null) {
+            return id;
+        }
+        if (client) {
+            if (clientSize >= Instruments_MaxClientIds) {
+                return -1;
+            }
+            ++clientSize;
+        }
+        if (size >= MaxIds) {
+            throw new IllegalStateException("Too many instruments, " + size);
+        }
+
+        // Find product id
+        int pid = -1;
+        Matcher m = patt.matcher(inst);
+        if (m.find()) {
+            String product = inst.substring(m.start(), m.end());
+            Integer p = productIds.get(product);
+            if (p == null) {
+                p = productSize++;
+                productIds.put(product, p);
+            }
+            pid = p;
+        }
+
+        // Publish name and product before id
+        id = size++;
+        names.set(id, inst);
+        products.set(id, pid);
+        ids.put(inst, id);
+        return id;
+    }
+
+    /**
+     * Concurrent table indexed by id, read without lock.
+     * <p>
+     * Slots are in fixed-size chunks allocated on first write, so the table grows
+     * without copying and a write is never lost to growing.
+     */
+    public static class Table<V> {
+        final static int ChunkBits = 10;
+        final static int ChunkSize = 1 << ChunkBits;
+
+        AtomicReferenceArray<AtomicReferenceArray<V>> chunks;
+
+        public Table() {
+            chunks = new AtomicReferenceArray<>(ChunkSize);
+        }
+
+        public V get(int id) {
+            AtomicReferenceArray<V> c = id >= 0 && id < MaxIds ? chunks.get(id >>> ChunkBits) : null;
+            return c != null ? c.get(id & (ChunkSize - 1)) : null;
+        }
+
+        public void set(int id, V v) {
+            chunkOf(id).set(id & (ChunkSize - 1), v);
+        }
+
+        public boolean compareAndSet(int id, V expect, V update) {
+            return chunkOf(id).compareAndSet(id & (ChunkSize - 1), expect, update);
+        }
+
+        /**
+         * Set value.
+         *
+         * @return the previous value
+         */
+        public V getAndSet(int id, V v) {
+            return chunkOf(id).getAndSet(id & (ChunkSize - 1), v);
+        }
+
+        /**
+         * Set value if absent.
+         *
+         * @return the existing value, or null if value is set
+         */
+        public V putIfAbsent(int id, V v) {
+            AtomicReferenceArray<V> c = chunkOf(id);
+            int i = id & (ChunkSize - 1);
+            while (true) {
+                V old = c.get(i);
+                if (old != null) {
+                    return old;
+                }
+                if (c.compareAndSet(i, null, v)) {
+                    return null;
+                }
+            }
+        }
+
+        protected AtomicReferenceArray<V> chunkOf(int id) {
+            if (id < 0 || id >= MaxIds) {
+                throw new IndexOutOfBoundsException("Invalid id, " + id);
+            }
+
+            int k = id >>> ChunkBits;
+            AtomicReferenceArray<V> c = chunks.get(k);
+            if (c == null) {
+                chunks.compareAndSet(k, null, new AtomicReferenceArray<V>(ChunkSize));
+                c = chunks.get(k);
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,747 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+import flyingbot.it.util.Result;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static flyingbot.it.hq.ws.resources.Constants.MetadataTag;
+
+/**
+ * Streaming parser for inside feed JSON, reads market data straight from the
+ * received bytes into {@link MarketData} and {@link Candle}.
+ * <p>
+ * Accepts both forms sent by feeders, an array of objects or a single object,
+ * <pre>
+ * [{"_METADATA_" : "MarketData", ...}, {...}]
+ * {"_METADATA_" : "Candle", ...}
+ * </pre>
+ * Keys are matched to public fields of the data class without creating strings,
+ * and number values are parsed in place. The first objects of each type, objects
+ * with a different number of keys, and then a sample of objects are also parsed
+ * by org.json and compared, if the results differ the type keeps using org.json
+ * parsing, so the decoded data is always the same as before.
+ * <p>
+ * The reader keeps state of the current input and is not thread-safe, use one
+ * reader per session.
+ */
+public class HQJsonReader {
+    // Value kinds
+    final static int Value_String = 0;
+    final static int Value_Number = 1;
+    final static int Value_True = 2;
+    final static int Value_False = 3;
+    final static int Value_Null = 4;
+    final static int Value_Nested = 5;
+
+    // Binding states
+    final static int State_Unverified = 0;
+    final static int State_Streamed = 1;
+    final static int State_Legacy = 2;
+
+    // Objects of each type verified with org.json before streaming alone,
+    // then one in every interval is verified
+    final static int VerifiedObjects = 16;
+    final static int VerifyInterval = 1024;
+
+    // Max digits that are exactly represented in double
+    final static int MaxExactDigits = 15;
+
+    // Exact powers of ten in double
+    final static double[] Pow10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Bounds of accumulating negative long
+    final static long MinLongDiv10 = Long.MIN_VALUE / 10;
+    final static int MinLongLastDigit = (int) -(Long.MIN_VALUE % 10);
+
+    final static byte[] MetadataBytes = MetadataTag.getBytes(StandardCharsets.UTF_8);
+
+    // Current input
+    byte[] buf;
+    int pos, end;
+
+    // Key-value pairs of current object
+    int pairs;
+    int[] keyStart, keyEnd, valueStart, valueEnd, valueKind;
+    boolean[] keyEscaped, valueEscaped;
+
+    // Bindings for data types
+    Binding mdBinding, cndBinding;
+
+    public HQJsonReader() {
+        ensurePairs(64);
+        mdBinding = new Binding(MarketData.class, MarketData.DataType);
+        cndBinding = new Binding(Candle.class, Candle.DataType);
+    }
+
+    /**
+     * Parse data and send them to sink.
+     *
+     * @param data bytes received
+     * @param off  offset of JSON text
+     * @param len  length of JSON text
+     * @param sink receiver of parsed data
+     * @return result, the last error if any object failed
+     * @throws JSONException when input is not valid JSON
+     */
+    public Result read(byte[] data, int off, int len, HQDataSink sink) throws JSONException {
+        Result res = new Result();
+        buf = data;
+        pos = off;
+        end = off + len;
+
+        try {
+            skipWhitespace();
+            if (pos >= end) {
+                throw new JSONException("Invalid JSON string, empty input");
+            }
+
+            // Compatible for both array and object
+            if (buf[pos] == '[') {
+                ++pos;
+                skipWhitespace();
+                if (peek() == ']') {
+                    ++pos;
+                    return new Result(Result.Error, -1, "Received empty data array.");
+                }
+
+                while (true) {
+                    Result r = readObject(sink);
+                    if (r.equals(Result.Error)) {
+                        res = r;
+                    }
+
+                    skipWhitespace();
+                    byte c = next();
+                    if (c == ']') {
+                        break;
+                    } else if (c != ',') {
+                        throw syntaxError("Expected ',' or ']'");
+                    }
+                    skipWhitespace();
+                }
+            } else if (buf[pos] == '{') {
+                res = readObject(sink);
+            } else {
+                throw syntaxError("Invalid JSON string");
+            }
+
+            skipWhitespace();
+            if (pos < end) {
+                throw syntaxError("Unexpected content after JSON");
+            }
+            return res;
+        } finally {
+            // Don't hold reference to input
+            buf = null;
+        }
+    }
+
+    protected Result readObject(HQDataSink sink) {
+        int objStart = pos;
+        scanObject();
+        int objEnd = pos;
+
+        // Find type
+        int meta = -1;
+        for (int i = 0; i < pairs; ++i) {
+            if (!keyEscaped[i] && equals(keyStart[i], keyEnd[i], MetadataBytes)) {
+                meta = i;
+                break;
+            }
+        }
+        if (meta < 0 || valueKind[meta] != Value_String) {
+            throw new JSONException("JSONObject[\"" + MetadataTag + "\"] not found.");
+        }
+
+        // Find binding
+        Binding bd = null;
+        if (equals(valueStart[meta], valueEnd[meta], mdBinding.typeBytes)) {
+            bd = mdBinding;
+        } else if (equals(valueStart[meta], valueEnd[meta], cndBinding.typeBytes)) {
+            bd = cndBinding;
+        } else {
+            String type = decodeString(valueStart[meta], valueEnd[meta], valueEscaped[meta]);
+            return new Result(Result.Error, -1, "Unknown market data type, " + type);
+        }
+
+        Object o = bind(bd, objStart, objEnd);
+        if (bd == mdBinding) {
+            MarketData md = (MarketData) o;
+            return sink.onMarketData(sink.instrumentId(md.InstrumentID), md);
+        } else {
+            Candle c = (Candle) o;
+            return sink.onCandle(sink.instrumentId(c.InstrumentID), c);
+        }
+    }
+
+    protected Object bind(Binding bd, int objStart, int objEnd) {
+        if (bd.state == State_Legacy) {
+            return parseLegacy(bd, objStart, objEnd);
+        }
+
+        // Object can't be streamed, e.g. nested value or unexpected value type
+        Object o = bindFields(bd);
+        if (o == null) {
+            return parseLegacy(bd, objStart, objEnd);
+        }
+
+        // Verify with org.json on first objects, on new shape and on samples
+        if (bd.needsVerify(pairs)) {
+            Object l = parseLegacy(bd, objStart, objEnd);
+            if (!bd.sameFields(o, l)) {
+                bd.state = State_Legacy;
+                return l;
+            }
+            bd.verified(pairs);
+        }
+        return o;
+    }
+
+    protected Object parseLegacy(Binding bd, int objStart, int objEnd) {
+        JSONObject o = new JSONObject(new String(buf, objStart, objEnd - objStart, StandardCharsets.UTF_8));
+        if (bd == mdBinding) {
+            return MarketData.Parse(o);
+        } else {
+            return Candle.Parse(o);
+        }
+    }
+
+    protected Object bindFields(Binding bd) {
+        HQDataSchema s = bd.schema;
+        Object o = s.newInstance();
+
+        for (int p = 0; p < pairs; ++p) {
+            if (keyEscaped[p] || valueKind[p] == Value_Null) {
+                continue;
+            }
+
+            int i = bd.lookup(buf, keyStart[p], keyEnd[p]);
+            if (i < 0) {
+                continue;
+            }
+
+            int vk = valueKind[p];
+            switch (s.kind(i)) {
+            case HQDataSchema.Kind_String:
+                if (vk != Value_String) {
+                    return null;
+                }
+                s.setString(o, i, bd.string(this, i, valueStart[p], valueEnd[p], valueEscaped[p]));
+                break;
+            case HQDataSchema.Kind_Int:
+            case HQDataSchema.Kind_Long:
+                if (vk != Value_Number) {
+                    return null;
+                }
+                s.setLong(o, i, parseLong(valueStart[p], valueEnd[p]));
+                break;
+            case HQDataSchema.Kind_Double:
+                if (vk != Value_Number) {
+                    return null;
+                }
+                s.setDouble(o, i, parseDouble(valueStart[p], valueEnd[p]));
+                break;
+            case HQDataSchema.Kind_Boolean:
+                if (vk != Value_True && vk != Value_False) {
+                    return null;
+                }
+                s.setBoolean(o, i, vk == Value_True);
+                break;
+            default:
+                return null;
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Scan an object and record its key-value pairs. Position is moved after the
+     * closing brace.
+     */
+    protected void scanObject() {
+        pairs = 0;
+        if (next() != '{') {
+            throw syntaxError("Expected '{'");
+        }
+
+        skipWhitespace();
+        if (peek() == '}') {
+            ++pos;
+            return;
+        }
+
+        while (true) {
+            ensurePairs(pairs + 1);
+
+            // Key
+            if (next() != '"') {
+                throw syntaxError("Expected string key");
+            }
+            keyStart[pairs] = pos;
+            keyEscaped[pairs] = scanString();
+            keyEnd[pairs] = pos - 1;
+
+            skipWhitespace();
+            if (next() != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            skipWhitespace();
+
+            // Value
+            scanValue(pairs);
+            ++pairs;
+
+            skipWhitespace();
+            byte c = next();
+            if (c == '}') {
+                return;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            skipWhitespace();
+        }
+    }
+
+    protected void scanValue(int p) {
+        byte c = peek();
+        switch (c) {
+        case '"':
+            ++pos;
+            valueStart[p] = pos;
+            valueEscaped[p] = scanString();
+            valueEnd[p] = pos - 1;
+            valueKind[p] = Value_String;
+            break;
+        case '{':
+        case '[':
+            valueStart[p] = pos;
+            skipNested();
+            valueEnd[p] = pos;
+            valueKind[p] = Value_Nested;
+            break;
+        case 't':
+            valueKind[p] = Value_True;
+            scanLiteral(p, "true");
+            break;
+        case 'f':
+            valueKind[p] = Value_False;
+            scanLiteral(p, "false");
+            break;
+        case 'n':
+            valueKind[p] = Value_Null;
+            scanLiteral(p, "null");
+            break;
+        default:
+            valueStart[p] = pos;
+            scanNumber();
+            valueEnd[p] = pos;
+            valueKind[p] = Value_Number;
+        }
+    }
+
+    protected void scanLiteral(int p, String lit) {
+        valueStart[p] = pos;
+        for (int i = 0; i < lit.length(); ++i) {
+            if (next() != lit.charAt(i)) {
+                throw syntaxError("Expected " + lit);
+            }
+        }
+        valueEnd[p] = pos;
+    }
+
+    /**
+     * Scan to the end of string, position is after closing quote.
+     *
+     * @return true if the string has escapes or non-ASCII bytes
+     */
+    protected boolean scanString() {
+        boolean escaped = false;
+        while (true) {
+            byte c = next();
+            if (c == '"') {
+                return escaped;
+            } else if (c == '\\') {
+                next();
+                escaped = true;
+            } else if (c < 0) {
+                escaped = true;
+            }
+        }
+    }
+
+    protected void scanNumber() {
+        int start = pos;
+        while (pos < end) {
+            byte c = buf[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                ++pos;
+            } else {
+                break;
+            }
+        }
+        if (pos == start) {
+            throw syntaxError("Unexpected character");
+        }
+    }
+
+    protected void skipNested() {
+        int depth = 0;
+        do {
+            byte c = next();
+            if (c == '"') {
+                scanString();
+            } else if (c == '{' || c == '[') {
+                ++depth;
+            } else if (c == '}' || c == ']') {
+                --depth;
+            }
+        } while (depth > 0);
+    }
+
+    protected long parseLong(int s, int e) {
+        boolean neg = false;
+        int i = s;
+        if (buf[i] == '-') {
+            neg = true;
+            ++i;
+        }
+        if (i == e) {
+            throw new JSONException("Invalid number at " + s);
+        }
+
+        // Accumulate negative value, so Long.MIN_VALUE is exact
+        long v = 0;
+        boolean overflow = false;
+        for (; i < e; ++i) {
+            byte c = buf[i];
+            if (c < '0' || c > '9') {
+                // Decimal or exponent, truncated like org.json
+                return (long) parseDouble(s, e);
+            }
+            int d = c - '0';
+            if (v < MinLongDiv10 || (v == MinLongDiv10 && d > MinLongLastDigit)) {
+                overflow = true;
+            }
+            v = v * 10 - d;
+        }
+        if (overflow || (!neg && v == Long.MIN_VALUE)) {
+            throw new JSONException("Number out of long range at " + s);
+        }
+        return neg ? v : -v;
+    }
+
+    protected double parseDouble(int s, int e) {
+        boolean neg = false;
+        int i = s;
+        if (buf[i] == '-') {
+            neg = true;
+            ++i;
+        }
+
+        // Fast path for plain decimals, exact mantissa divided by exact power of ten
+        // is correctly rounded, the same as Double.parseDouble().
+        long m = 0;
+        int digits = 0, frac = -1;
+        boolean any = false;
+        for (; i < e; ++i) {
+            byte c = buf[i];
+            if (c >= '0' && c <= '9') {
+                any = true;
+                m = m * 10 + (c - '0');
+                if (m != 0) {
+                    ++digits;
+                }
+                if (frac >= 0) {
+                    ++frac;
+                }
+            } else if (c == '.' && frac < 0) {
+                frac = 0;
+            } else {
+                digits = Integer.MAX_VALUE;
+                break;
+            }
+        }
+
+        // No digit, e.g. a lone sign or point
+        if (!any && digits != Integer.MAX_VALUE) {
+            throw new JSONException("Invalid number at " + s);
+        }
+
+        if (digits <= MaxExactDigits && frac < Pow10.length) {
+            double v = frac > 0 ? m / Pow10[frac] : m;
+            return neg ? -v : v;
+        }
+
+        try {
+            return Double.parseDouble(new String(buf, s, e - s, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException ex) {
+            throw new JSONException("Invalid number at " + s);
+        }
+    }
+
+    /**
+     * Decode string value.
+     */
+    protected String decodeString(int s, int e, boolean escaped) {
+        if (!escaped) {
+            return new String(buf, s, e - s, StandardCharsets.ISO_8859_1);
+        }
+
+        StringBuilder sb = new StringBuilder(e - s);
+        int run = s;
+        for (int i = s; i < e; ++i) {
+            if (buf[i] != '\\') {
+                continue;
+            }
+
+            // Flush unescaped run
+            if (i > run) {
+                sb.append(new String(buf, run, i - run, StandardCharsets.UTF_8));
+            }
+
+            byte c = buf[++i];
+            switch (c) {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 'u':
+                if (i + 4 >= e) {
+                    throw new JSONException("Illegal escape at " + i);
+                }
+                sb.append((char) Integer.parseInt(new String(buf, i + 1, 4, StandardCharsets.US_ASCII), 16));
+                i += 4;
+                break;
+            default:
+                sb.append((char) c);
+            }
+            run = i + 1;
+        }
+        if (e > run) {
+            sb.append(new String(buf, run, e - run, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    protected boolean equals(int s, int e, byte[] b) {
+        if (e - s != b.length) {
+            return false;
+        }
+        for (int i = 0; i < b.length; ++i) {
+            if (buf[s + i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void skipWhitespace() {
+        while (pos < end && buf[pos] <= ' ' && buf[pos] >= 0) {
+            ++pos;
+        }
+    }
+
+    protected byte peek() {
+        if (pos >= end) {
+            throw syntaxError("Unexpected end of JSON");
+        }
+        return buf[pos];
+    }
+
+    protected byte next() {
+        if (pos >= end) {
+            throw syntaxError("Unexpected end of JSON");
+        }
+        return buf[pos++];
+    }
+
+    protected JSONException syntaxError(String msg) {
+        return new JSONException(msg + " at " + pos);
+    }
+
+    protected void ensurePairs(int n) {
+        if (keyStart != null && keyStart.length >= n) {
+            return;
+        }
+
+        int size = Math.max(n, keyStart == null ? 0 : keyStart.length * 2);
+        keyStart = keyStart == null ? new int[size] : Arrays.copyOf(keyStart, size);
+        keyEnd = keyEnd == null ? new int[size] : Arrays.copyOf(keyEnd, size);
+        valueStart = valueStart == null ? new int[size] : Arrays.copyOf(valueStart, size);
+        valueEnd = valueEnd == null ? new int[size] : Arrays.copyOf(valueEnd, size);
+        valueKind = valueKind == null ? new int[size] : Arrays.copyOf(valueKind, size);
+        keyEscaped = keyEscaped == null ? new boolean[size] : Arrays.copyOf(keyEscaped, size);
+        valueEscaped = valueEscaped == null ? new boolean[size] : Arrays.copyOf(valueEscaped, size);
+    }
+
+    /**
+     * Field binding for a data type.
+     */
+    static class Binding {
+        HQDataSchema schema;
+
+        // _METADATA_ value of the type
+        byte[] typeBytes;
+
+        // Verification state
+        int state;
+
+        // Objects to verify before streaming alone, objects since last verified,
+        // and key number of verified objects
+        int unverified, sinceVerified, verifiedPairs;
+
+        // Field name hash table, value is field index + 1
+        byte[][] names;
+        int[] table;
+        int mask;
+
+        // Last decoded string of each field, reused when bytes are the same
+        byte[][] lastBytes;
+        String[] lastStrings;
+
+        Binding(Class<?> type, String dataType) {
+            schema = HQDataSchema.of(type);
+            typeBytes = dataType.getBytes(StandardCharsets.UTF_8);
+            state = State_Unverified;
+            unverified = VerifiedObjects;
+            verifiedPairs = -1;
+
+            int n = schema.size();
+            names = new byte[n][];
+            lastBytes = new byte[n][];
+            lastStrings = new String[n];
+
+            // Table size is power of 2, at least twice the fields
+            int size = 4;
+            while (size < n * 2) {
+                size <<= 1;
+            }
+            table = new int[size];
+            mask = size - 1;
+
+            for (int i = 0; i < n; ++i) {
+                names[i] = schema.name(i).getBytes(StandardCharsets.UTF_8);
+                int h = hash(names[i], 0, names[i].length) & mask;
+                while (table[h] != 0) {
+                    h = (h + 1) & mask;
+                }
+                table[h] = i + 1;
+            }
+        }
+
+        boolean needsVerify(int pairs) {
+            return state == State_Unverified || pairs != verifiedPairs || ++sinceVerified >= VerifyInterval;
+        }
+
+        void verified(int pairs) {
+            verifiedPairs = pairs;
+            sinceVerified = 0;
+            if (--unverified <= 0) {
+                state = State_Streamed;
+            }
+        }
+
+        static int hash(byte[] b, int s, int e) {
+            int h = 0;
+            for (int i = s; i < e; ++i) {
+                h = 31 * h + b[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Find field index by key bytes.
+         *
+         * @return field index, or -1 if not found
+         */
+        int lookup(byte[] b, int s, int e) {
+            int h = hash(b, s, e) & mask;
+            while (table[h] != 0) {
+                byte[] name = names[table[h] - 1];
+                if (name.length == e - s) {
+                    int i = 0;
+                    while (i < name.length && name[i] == b[s + i]) {
+                        ++i;
+                    }
+                    if (i == name.length) {
+                        return table[h] - 1;
+                    }
+                }
+                h = (h + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Decode string value of field, reuse the last string if bytes are the same.
+         */
+        String string(HQJsonReader r, int i, int s, int e, boolean escaped) {
+            if (escaped) {
+                return r.decodeString(s, e, true);
+            }
+
+            byte[] last = lastBytes[i];
+            if (last != null && r.equals(s, e, last)) {
+                return lastStrings[i];
+            }
+
+            lastBytes[i] = Arrays.copyOfRange(r.buf, s, e);
+            lastStrings[i] = r.decodeString(s, e, false);
+            return lastStrings[i];
+        }
+
+        /**
+         * Test if all schema fields of two objects are the same.
+         */
+        boolean sameFields(Object a, Object b) {
+            for (int i = 0; i < schema.size(); ++i) {
+                switch (schema.kind(i)) {
+                case HQDataSchema.Kind_String:
+                    String x = schema.getString(a, i), y = schema.getString(b, i);
+                    if (x == null ? y != null : !x.equals(y)) {
+                        return false;
+                    }
+                    break;
+                case HQDataSchema.Kind_Int:
+                case HQDataSchema.Kind_Long:
+                    if (schema.getLong(a, i) != schema.getLong(b, i)) {
+                        return false;
+                    }
+                    break;
+                case HQDataSchema.Kind_Double:
+                    if (Double.compare(schema.getDouble(a, i), schema.getDouble(b, i)) != 0) {
+                        return false;
+                    }
+                    break;
+                case HQDataSchema.Kind_Boolean:
+                    if (schema.getBoolean(a, i) != schema.getBoolean(b, i)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.TransferredData;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streaming encoder for server-sent data, writes JSON straight into a pooled
+ * {@link ByteBuf} without building JSONObject trees or intermediate strings.
+ * <p>
+ * Output is byte-for-byte the same as the org.json serialization used before,
+ * <pre>
+ * {"sequence":123456,"data":[{}, {}],"type":"MarketData"}
+ * </pre>
+ * Fields of a data class are written in the key order of its ToJSON() output.
+ * org.json drops null values, and key order depends on the keys present, so the
+ * order is learned per set of null String fields, from the first object having
+ * that set. A layout streams fields only after its first objects are encoded
+ * exactly as ToJSON(), otherwise the writer falls back to ToJSON() for it.
+ */
+public class HQJsonWriter {
+    // Double with abs value under this is written as integer by Double.toString
+    private final static double IntegralDoubleLimit = 1.0E7;
+
+    // Estimated bytes per data object
+    private final static int EstimatedObjectSize = 512;
+
+    // Envelope, keys in org.json order
+    private final static byte[] HeadBytes = "{\"sequence\":".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] DataBytes = ",\"data\":[".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] TypeBytes = "],\"type\":".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] TrueBytes = "true".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] FalseBytes = "false".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] HexDigits = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // Buffer allocator
+    ByteBufAllocator alloc;
+
+    // Objects of a layout compared with ToJSON() before streaming without check
+    private final static int VerifiedSamples = 16;
+
+    // Learned layouts
+    ConcurrentHashMap<Class<?>, ClassLayouts> layouts;
+
+    public HQJsonWriter(ByteBufAllocator alloc) {
+        this.alloc = alloc;
+        this.layouts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Write single data object in envelope.
+     *
+     * @param type     message type
+     * @param sequence message sequence
+     * @param d        data
+     * @return encoded message, caller owns the buffer
+     */
+    public ByteBuf write(String type, long sequence, TransferredData<?> d) {
+        ByteBuf buf = alloc.buffer(EstimatedObjectSize);
+        try {
+            writeHead(buf, sequence);
+            writeData(buf, d);
+            writeTail(buf, type);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Write data objects in envelope, in the iteration order of collection.
+     *
+     * @param type     message type
+     * @param sequence message sequence
+     * @param data     data objects
+     * @return encoded message, caller owns the buffer
+     */
+    public ByteBuf write(String type, long sequence, Collection<? extends TransferredData<?>> data) {
+        ByteBuf buf = alloc.buffer(EstimatedObjectSize * Math.max(1, data.size()));
+        try {
+            writeHead(buf, sequence);
+            writeBody(buf, type, data);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Write head of message, the part having sequence. Head followed by body is
+     * the same as {@link #write(String, long, Collection)}, so a body can be
+     * encoded once and sent with a new sequence each time.
+     *
+     * @param sequence message sequence
+     * @return encoded head, caller owns the buffer
+     */
+    public ByteBuf writeHead(long sequence) {
+        ByteBuf buf = alloc.buffer(HeadBytes.length + DataBytes.length + 20);
+        writeHead(buf, sequence);
+        return buf;
+    }
+
+    /**
+     * Write body of message, the data objects and type after head.
+     *
+     * @param type message type
+     * @param data data objects
+     * @return encoded body, caller owns the buffer
+     */
+    public ByteBuf writeBody(String type, Collection<? extends TransferredData<?>> data) {
+        ByteBuf buf = alloc.buffer(EstimatedObjectSize * Math.max(1, data.size()));
+        try {
+            writeBody(buf, type, data);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    protected void writeBody(ByteBuf buf, String type, Collection<? extends TransferredData<?>> data) {
+        boolean first = true;
+        for (TransferredData<?> d : data) {
+            if (!first) {
+                buf.writeByte(',');
+            }
+            writeData(buf, d);
+            first = false;
+        }
+        writeTail(buf, type);
+    }
+
+    protected void writeHead(ByteBuf buf, long sequence) {
+        buf.writeBytes(HeadBytes);
+        writeLong(buf, sequence);
+        buf.writeBytes(DataBytes);
+    }
+
+    protected void writeTail(ByteBuf buf, String type) {
+        buf.writeBytes(TypeBytes);
+        writeString(buf, type);
+        buf.writeByte('}');
+    }
+
+    /**
+     * Write one data object.
+     *
+     * @param buf buffer
+     * @param d   data
+     */
+    public void writeData(ByteBuf buf, TransferredData<?> d) {
+        ClassLayouts c = classLayouts(d.getClass());
+        JsonLayout l = c.stringFields == null ? null : c.layout(d);
+        int[] order = l != null ? l.order : null;
+        if (order == null) {
+            writeJSON(buf, d.ToJSON());
+        } else if (l.unverified.get() > 0) {
+            writeVerified(buf, l, order, d);
+        } else {
+            writeFields(buf, l, order, d);
+        }
+    }
+
+    protected ClassLayouts classLayouts(Class<?> type) {
+        ClassLayouts c = layouts.get(type);
+        if (c == null) {
+            c = new ClassLayouts(HQDataSchema.of(type));
+            ClassLayouts prev = layouts.putIfAbsent(type, c);
+            if (prev != null) {
+                c = prev;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Stream fields, and compare with ToJSON() output while the layout is verified.
+     * Layout not matching ToJSON() is disabled, and ToJSON() is written.
+     */
+    protected void writeVerified(ByteBuf buf, JsonLayout l, int[] order, TransferredData<?> d) {
+        byte[] expected = d.ToJSON().toString(0).getBytes(StandardCharsets.UTF_8);
+        ByteBuf tmp = Unpooled.buffer(expected.length);
+        try {
+            writeFields(tmp, l, order, d);
+            byte[] streamed = new byte[tmp.readableBytes()];
+            tmp.readBytes(streamed);
+            if (!Arrays.equals(streamed, expected)) {
+                l.order = null;
+            } else {
+                l.unverified.decrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            l.order = null;
+        } finally {
+            tmp.release();
+        }
+        buf.writeBytes(expected);
+    }
+
+    protected void writeFields(ByteBuf buf, JsonLayout l, int[] order, Object d) {
+        HQDataSchema s = l.schema;
+        boolean first = true;
+
+        buf.writeByte('{');
+        for (int i : order) {
+            // org.json drops null values
+            String str = null;
+            if (s.kind(i) == HQDataSchema.Kind_String) {
+                str = s.getString(d, i);
+                if (str == null) {
+                    continue;
+                }
+            }
+
+            if (!first) {
+                buf.writeByte(',');
+            }
+            first = false;
+
+            buf.writeBytes(l.keys[i]);
+            switch (s.kind(i)) {
+            case HQDataSchema.Kind_String:
+                writeString(buf, str);
+                break;
+            case HQDataSchema.Kind_Int:
+            case HQDataSchema.Kind_Long:
+                writeLong(buf, s.getLong(d, i));
+                break;
+            case HQDataSchema.Kind_Double:
+                writeDouble(buf, s.getDouble(d, i));
+                break;
+            case HQDataSchema.Kind_Boolean:
+                buf.writeBytes(s.getBoolean(d, i) ? TrueBytes : FalseBytes);
+                break;
+            default:
+                throw new JSONException("Unsupported field kind, " + s.name(i));
+            }
+        }
+        buf.writeByte('}');
+    }
+
+    protected void writeJSON(ByteBuf buf, JSONObject o) {
+        try {
+            Writer w = new OutputStreamWriter(new ByteBufOutputStream(buf), StandardCharsets.UTF_8);
+            o.write(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Write decimal digits of long value.
+     */
+    public static void writeLong(ByteBuf buf, long v) {
+        if (v == Long.MIN_VALUE) {
+            writeAscii(buf, Long.toString(v));
+            return;
+        }
+        if (v < 0) {
+            buf.writeByte('-');
+            v = -v;
+        }
+
+        // Count digits
+        int len = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            ++len;
+        }
+
+        // Fill digits from right to left
+        int idx = buf.writerIndex();
+        buf.ensureWritable(len);
+        for (int p = idx + len - 1; p >= idx; --p) {
+            buf.setByte(p, (int) ('0' + v % 10));
+            v /= 10;
+        }
+        buf.writerIndex(idx + len);
+    }
+
+    /**
+     * Write double the same way as org.json, Double.toString() with trailing
+     * zeros removed. Integral values are written without creating strings.
+     */
+    public static void writeDouble(ByteBuf buf, double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            throw new JSONException("JSON does not allow non-finite numbers.");
+        }
+
+        // Integral, and not negative zero
+        if (v == (long) v && Math.abs(v) < IntegralDoubleLimit
+                && Double.doubleToRawLongBits(v) != Double.doubleToRawLongBits(-0.0)) {
+            writeLong(buf, (long) v);
+            return;
+        }
+
+        String s = Double.toString(v);
+        int end = s.length();
+        if (s.indexOf('.') > 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+            while (s.charAt(end - 1) == '0') {
+                --end;
+            }
+            if (s.charAt(end - 1) == '.') {
+                --end;
+            }
+        }
+        for (int i = 0; i < end; ++i) {
+            buf.writeByte(s.charAt(i));
+        }
+    }
+
+    /**
+     * Write quoted string with the same escaping as JSONObject.quote().
+     */
+    public static void writeString(ByteBuf buf, String s) {
+        char b, c = 0;
+
+        buf.writeByte('"');
+        for (int i = 0; i < s.length(); ++i) {
+            b = c;
+            c = s.charAt(i);
+            switch (c) {
+            case '\\':
+            case '"':
+                buf.writeByte('\\');
+                buf.writeByte(c);
+                break;
+            case '/':
+                if (b == '<') {
+                    buf.writeByte('\\');
+                }
+                buf.writeByte(c);
+                break;
+            case '\b':
+                buf.writeByte('\\');
+                buf.writeByte('b');
+                break;
+            case '\t':
+                buf.writeByte('\\');
+                buf.writeByte('t');
+                break;
+            case '\n':
+                buf.writeByte('\\');
+                buf.writeByte('n');
+                break;
+            case '\f':
+                buf.writeByte('\\');
+                buf.writeByte('f');
+                break;
+            case '\r':
+                buf.writeByte('\\');
+                buf.writeByte('r');
+                break;
+            default:
+                if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                    buf.writeByte('\\');
+                    buf.writeByte('u');
+                    buf.writeByte(HexDigits[(c >> 12) & 0xF]);
+                    buf.writeByte(HexDigits[(c >> 8) & 0xF]);
+                    buf.writeByte(HexDigits[(c >> 4) & 0xF]);
+                    buf.writeByte(HexDigits[c & 0xF]);
+                } else if (c < 0x80) {
+                    buf.writeByte(c);
+                } else if (c < 0x800) {
+                    buf.writeByte(0xC0 | (c >> 6));
+                    buf.writeByte(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf.writeByte(0xF0 | (cp >> 18));
+                    buf.writeByte(0x80 | ((cp >> 12) & 0x3F));
+                    buf.writeByte(0x80 | ((cp >> 6) & 0x3F));
+                    buf.writeByte(0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate, same replacement as the UTF-8 encoder
+                    buf.writeByte('?');
+                } else {
+                    buf.writeByte(0xE0 | (c >> 12));
+                    buf.writeByte(0x80 | ((c >> 6) & 0x3F));
+                    buf.writeByte(0x80 | (c & 0x3F));
+                }
+            }
+        }
+        buf.writeByte('"');
+    }
+
+    protected static void writeAscii(ByteBuf buf, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            buf.writeByte(s.charAt(i));
+        }
+    }
+
+    /**
+     * Layouts of a data class, one per set of null String fields.
+     */
+    static class ClassLayouts {
+        // Schema of the data class
+        HQDataSchema schema;
+
+        // String fields, bit b of null mask is stringFields[b]; null if too many to stream
+        int[] stringFields;
+
+        // Encoded '"key":' for each field, same index as schema
+        byte[][] keys;
+
+        // Layouts by null mask, and the last used
+        ConcurrentHashMap<Long, JsonLayout> byMask;
+        volatile JsonLayout last;
+
+        ClassLayouts(HQDataSchema schema) {
+            this.schema = schema;
+            this.byMask = new ConcurrentHashMap<>();
+            this.keys = new byte[schema.size()][];
+
+            // Pre-encode keys
+            ByteBuf buf = Unpooled.buffer();
+            int n = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                buf.clear();
+                writeString(buf, schema.name(i));
+                buf.writeByte(':');
+                keys[i] = new byte[buf.readableBytes()];
+                buf.readBytes(keys[i]);
+                n += schema.kind(i) == HQDataSchema.Kind_String ? 1 : 0;
+            }
+            buf.release();
+
+            if (n <= Long.SIZE) {
+                stringFields = new int[n];
+                n = 0;
+                for (int i = 0; i < keys.length; ++i) {
+                    if (schema.kind(i) == HQDataSchema.Kind_String) {
+                        stringFields[n++] = i;
+                    }
+                }
+            }
+        }
+
+        long nullMask(Object d) {
+            long mask = 0;
+            for (int b = 0; b < stringFields.length; ++b) {
+                if (schema.getString(d, stringFields[b]) == null) {
+                    mask |= 1L << b;
+                }
+            }
+            return mask;
+        }
+
+        JsonLayout layout(TransferredData<?> d) {
+            long mask = nullMask(d);
+            JsonLayout l = last;
+            if (l != null && l.mask == mask) {
+                return l;
+            }
+
+            l = byMask.get(mask);
+            if (l == null) {
+                l = learn(mask, d);
+                JsonLayout prev = byMask.putIfAbsent(mask, l);
+                if (prev != null) {
+                    l = prev;
+                }
+            }
+            last = l;
+            return l;
+        }
+
+        /**
+         * Learn field order from ToJSON() output of the sample.
+         */
+        JsonLayout learn(long mask, TransferredData<?> sample) {
+            JSONObject o = sample.ToJSON();
+
+            // Map keys to fields, in JSON key order
+            int[] order = new int[o.length()];
+            int n = 0;
+            for (String key : o.keySet()) {
+                int i = schema.indexOf(key);
+                if (i < 0) {
+                    return new JsonLayout(this, mask, null);
+                }
+                order[n++] = i;
+            }
+            return new JsonLayout(this, mask, order);
+        }
+    }
+
+    static class JsonLayout {
+        // Schema of the data class
+        HQDataSchema schema;
+
+        // Null String fields of objects in this layout
+        long mask;
+
+        // Field indexes in JSON key order, null if the layout can't be streamed
+        volatile int[] order;
+
+        // Encoded keys of class
+        byte[][] keys;
+
+        // Objects to compare with ToJSON() before trusting the layout
+        AtomicInteger unverified;
+
+        JsonLayout(ClassLayouts c, long mask, int[] order) {
+            this.schema = c.schema;
+            this.mask = mask;
+            this.order = order;
+            this.keys = c.keys;
+            this.unverified = new AtomicInteger(VerifiedSamples);
+        }
+    }
+}
@@ -15,6 +15,11 @@ import java.util.logging.Logger;
 
 import static flyingbot.it.hq.ws.resources.Constants.ConfigTag_IP;
 import static flyingbot.it.hq.ws.resources.Constants.ConfigTag_Port;
+import static flyingbot.it.hq.ws.resources.Constants.Dispatch_QueueSize;
+import static flyingbot.it.hq.ws.resources.Constants.Dispatch_Shards;
+import static flyingbot.it.hq.ws.resources.Constants.TickCandle_Mode;
+import static flyingbot.it.hq.ws.resources.Constants.TickCandle_Off;
+import static flyingbot.it.hq.ws.resources.Constants.TickCandle_UpdateMillis;
 
 public class HQServerContext {
 
@@ -24,6 +29,8 @@ public class HQServerContext {
 	
 	// Marketdata
 	public HQSubscribers subscribers;
+	// Inside feed data are processed on dispatch threads
+	public HQDispatcher dispatcher;
 	protected HashMap<Channel, ChannelParameterBundle> channelParams;
 	
 	// Channel parameters
@@ -38,6 +45,19 @@ public class HQServerContext {
 
 		// Create marketdata
 		subscribers = new HQSubscribers(LOG);
+		dispatcher = new HQDispatcher(subscribers, Dispatch_Shards, Dispatch_QueueSize, LOG);
+
+		// Send the last updates of tick candles, on threads sending data of instruments
+		if (TickCandle_Mode != TickCandle_Off) {
+			dispatcher.schedule(new HQDispatcher.ShardTask() {
+
+				@Override
+				public void run(int shard, int shardNum) {
+					subscribers.flushTickCandles(shard, shardNum);
+				}
+
+			}, TickCandle_UpdateMillis);
+		}
 	}
 
 	/**
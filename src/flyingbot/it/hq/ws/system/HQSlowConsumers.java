@@ -0,0 +1,240 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.TransferredData;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Live data to channels that can't keep up.
+ * <p>
+ * A channel is not writable when its outbound buffer is above the high water
+ * mark, then live frames are handled by policy instead of buffered,
+ * <li>conflate, keep the latest frame of each instrument tick or candle, and send
+ * them when channel is writable again
+ * <li>drop, discard frames until channel is writable again
+ * <li>disconnect, discard frames and close channel if it stays not writable
+ * <p>
+ * So a slow client holds at most the water mark and a frame per subscribed
+ * instrument and candle.
+ */
+public class HQSlowConsumers {
+    // Slow state of channel, created when channel is first not writable
+    public final static AttributeKey<State> StateKey = AttributeKey.valueOf("client.ws.slow");
+
+    // Policy and disconnect threshold
+    int policy;
+    long disconnectMillis;
+
+    // Counters of all channels
+    AtomicLong dropped, conflated, disconnected;
+
+    // Logger instance
+    Logger LOG;
+
+    public HQSlowConsumers(int policy, long disconnectMillis, Logger log) {
+        this.policy = policy;
+        this.disconnectMillis = disconnectMillis;
+        this.LOG = log;
+        this.dropped = new AtomicLong(0);
+        this.conflated = new AtomicLong(0);
+        this.disconnected = new AtomicLong(0);
+    }
+
+    /**
+     * Write live frame, or apply policy if channel is not writable.
+     *
+     * @param c  channel
+     * @param id instrument id
+     * @param d  data in frame, for conflation
+     * @param f  frame, released if not sent
+     */
+    public void write(Channel c, int id, TransferredData<?> d, WebSocketFrame f) {
+        State s = c.attr(StateKey).get();
+        if ((s == null || !s.conflating) && c.isWritable()) {
+            c.writeAndFlush(f);
+            return;
+        }
+
+        // Closed channel is not writable either
+        if (!c.isActive()) {
+            f.release();
+            return;
+        }
+
+        if (s == null) {
+            c.attr(StateKey).setIfAbsent(new State());
+            s = c.attr(StateKey).get();
+        }
+
+        boolean close = false;
+        synchronized (s) {
+            boolean writable = c.isWritable();
+            if (writable && !s.conflating) {
+                c.writeAndFlush(f);
+                return;
+            }
+            if (!writable && s.since == 0) {
+                s.since = System.currentTimeMillis();
+            }
+
+            if (policy == SlowConsumer_Conflate) {
+                WebSocketFrame old = s.frames.put(keyOf(id, d), f);
+                if (old != null) {
+                    old.release();
+                    ++s.conflated;
+                    conflated.incrementAndGet();
+                }
+                s.conflating = true;
+
+                // Became writable, frames held before are sent first
+                if (writable) {
+                    scheduleDrain(c, s);
+                }
+            } else {
+                f.release();
+                ++s.dropped;
+                dropped.incrementAndGet();
+                close = policy == SlowConsumer_Disconnect && isExpired(s);
+            }
+        }
+
+        if (close) {
+            disconnect(c, s);
+        }
+    }
+
+    /**
+     * Test if live data can be written to channel, channel staying not writable is
+     * closed by disconnect policy.
+     */
+    public boolean isWritable(Channel c) {
+        if (c.isWritable()) {
+            return true;
+        }
+
+        State s = c.attr(StateKey).get();
+        if (s == null) {
+            c.attr(StateKey).setIfAbsent(new State());
+            s = c.attr(StateKey).get();
+        }
+
+        boolean close;
+        synchronized (s) {
+            if (s.since == 0) {
+                s.since = System.currentTimeMillis();
+            }
+            close = policy == SlowConsumer_Disconnect && isExpired(s);
+        }
+        if (close) {
+            disconnect(c, s);
+        }
+        return false;
+    }
+
+    /**
+     * Send conflated frames when channel is writable again, called on event loop.
+     */
+    public void writabilityChanged(Channel c) {
+        State s = c.attr(StateKey).get();
+        if (s != null && c.isWritable()) {
+            drain(c, s);
+        }
+    }
+
+    /**
+     * Release held frames of closed channel.
+     */
+    public void remove(Channel c) {
+        State s = c.attr(StateKey).getAndSet(null);
+        if (s != null) {
+            synchronized (s) {
+                for (WebSocketFrame f : s.frames.values()) {
+                    f.release();
+                }
+                s.frames.clear();
+                s.conflating = false;
+            }
+        }
+    }
+
+    public String stats() {
+        return "slow consumers, dropped: " + dropped.get() + ", conflated: " + conflated.get()
+                + ", disconnected: " + disconnected.get();
+    }
+
+    protected void scheduleDrain(final Channel c, final State s) {
+        if (s.draining) {
+            return;
+        }
+        s.draining = true;
+        c.eventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                drain(c, s);
+            }
+
+        });
+    }
+
+    protected void drain(Channel c, State s) {
+        synchronized (s) {
+            // Frames written here go before live frames queued after draining
+            for (WebSocketFrame f : s.frames.values()) {
+                if (c.isActive()) {
+                    c.write(f);
+                } else {
+                    f.release();
+                }
+            }
+            s.frames.clear();
+            s.conflating = false;
+            s.draining = false;
+            s.since = 0;
+        }
+        c.flush();
+    }
+
+    protected boolean isExpired(State s) {
+        return s.since > 0 && System.currentTimeMillis() - s.since >= disconnectMillis;
+    }
+
+    protected void disconnect(Channel c, State s) {
+        if (c.isActive()) {
+            disconnected.incrementAndGet();
+            LOG.warning("Disconnect slow consumer, " + c + ", dropped " + s.dropped + " frames");
+            c.close();
+        }
+    }
+
+    // Ticks are conflated by instrument, candles also by period and bar
+    protected Object keyOf(int id, TransferredData<?> d) {
+        if (d instanceof Candle) {
+            Candle c = (Candle) d;
+            return id + ":" + c.Period + ":" + c.SerialNo;
+        }
+        return id;
+    }
+
+    /**
+     * Slow state of channel.
+     */
+    static class State {
+        // Latest frames in first-held order
+        LinkedHashMap<Object, WebSocketFrame> frames = new LinkedHashMap<>();
+        volatile boolean conflating;
+        boolean draining;
+
+        // Time channel became not writable, 0 if writable
+        long since;
+        long dropped, conflated;
+    }
+}
@@ -0,0 +1,210 @@
+package flyingbot.it.hq.ws.system;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of encoded history messages, shared by clients querying the same candles.
+ * <p>
+ * Snapshots are grouped by instrument and period, a group has a generation that
+ * changes on every change of its candles. Changing candles drops all snapshots
+ * of the group, and a snapshot encoded from candles read before the change is not
+ * cached. Groups of an instrument are removed with it, generations are unique
+ * across groups, so a query in progress can't cache into a group created again.
+ * Total size of cached messages is limited, the least recently used snapshots are
+ * released first.
+ */
+public class HQSnapshotCache {
+    // Max bytes of cached messages
+    long budget;
+    long used;
+
+    // Snapshots in access order, key: see key()
+    LinkedHashMap<String, Snapshot> entries;
+
+    // Snapshot groups, key: instrument/period
+    HashMap<String, Group> groups;
+
+    // Last generation of all groups
+    long lastGeneration;
+
+    // Stats
+    long hits, misses;
+
+    public HQSnapshotCache(long budget) {
+        this.budget = budget;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+        this.groups = new HashMap<>();
+    }
+
+    /**
+     * Key of snapshot.
+     *
+     * @param inst    instrument id
+     * @param period  candle period in minutes
+     * @param number  number of candles queried
+     * @param variant encoding of message, e.g. protocol and compression
+     * @return key
+     */
+    public static String key(String inst, int period, int number, String variant) {
+        return inst + "/" + period + "/" + number + "/" + variant;
+    }
+
+    /**
+     * Get cached snapshot.
+     *
+     * @param key snapshot key
+     * @return snapshot with retained message, caller releases the message; null if not cached
+     */
+    public synchronized Snapshot get(String key) {
+        Snapshot s = entries.get(key);
+        if (s == null) {
+            ++misses;
+            return null;
+        }
+
+        ++hits;
+        return new Snapshot(s.group, s.count, s.data.retainedDuplicate());
+    }
+
+    /**
+     * Get generation of candles, read it before querying candles for a new snapshot.
+     */
+    public synchronized long generation(String inst, int period) {
+        return group(inst, period).generation;
+    }
+
+    /**
+     * Cache snapshot if candles haven't changed since generation was read.
+     *
+     * @param inst       instrument id
+     * @param period     candle period in minutes
+     * @param key        snapshot key
+     * @param generation generation read before querying candles
+     * @param count      number of candles in message
+     * @param data       encoded message, ownership is transferred to cache
+     * @return message to send, caller releases it
+     */
+    public synchronized ByteBuf put(String inst, int period, String key, long generation, int count, ByteBuf data) {
+        // Candles have changed, instrument removed, or message alone is over budget
+        Group g = groups.get(inst + "/" + period);
+        if (g == null || g.generation != generation || data.readableBytes() > budget) {
+            return data;
+        }
+
+        Snapshot old = entries.put(key, new Snapshot(g, count, data));
+        if (old != null) {
+            used -= old.data.readableBytes();
+            old.data.release();
+        }
+        g.keys.add(key);
+        used += data.readableBytes();
+
+        // Release least recently used snapshots
+        Iterator<Map.Entry<String, Snapshot>> iter = entries.entrySet().iterator();
+        while (used > budget && iter.hasNext()) {
+            Map.Entry<String, Snapshot> e = iter.next();
+            if (e.getValue().data == data) {
+                continue;
+            }
+            e.getValue().group.keys.remove(e.getKey());
+            release(e.getValue());
+            iter.remove();
+        }
+        return data.retainedDuplicate();
+    }
+
+    /**
+     * Drop snapshots of changed candles.
+     */
+    public synchronized void invalidate(String inst, int period) {
+        Group g = groups.get(inst + "/" + period);
+        if (g != null) {
+            g.generation = ++lastGeneration;
+            removeKeys(g);
+        }
+    }
+
+    /**
+     * Drop all snapshots and groups of instrument, e.g. its candles are removed from cache.
+     */
+    public synchronized void remove(String inst) {
+        String prefix = inst + "/";
+        Iterator<Group> iter = groups.values().iterator();
+        while (iter.hasNext()) {
+            Group g = iter.next();
+            if (g.key.startsWith(prefix)) {
+                removeKeys(g);
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized long usedBytes() {
+        return used;
+    }
+
+    public synchronized String stats() {
+        return "snapshots: " + entries.size() + ", bytes: " + used + "/" + budget
+                + ", hits: " + hits + ", misses: " + misses;
+    }
+
+    protected Group group(String inst, int period) {
+        String gk = inst + "/" + period;
+        Group g = groups.get(gk);
+        if (g == null) {
+            g = new Group(gk, ++lastGeneration);
+            groups.put(gk, g);
+        }
+        return g;
+    }
+
+    protected void removeKeys(Group g) {
+        for (String k : g.keys) {
+            Snapshot s = entries.remove(k);
+            if (s != null) {
+                release(s);
+            }
+        }
+        g.keys.clear();
+    }
+
+    protected void release(Snapshot s) {
+        used -= s.data.readableBytes();
+        s.data.release();
+    }
+
+    static class Group {
+        String key;
+        long generation;
+        Set<String> keys;
+
+        Group(String key, long generation) {
+            this.key = key;
+            this.generation = generation;
+            this.keys = new HashSet<>();
+        }
+    }
+
+    public static class Snapshot {
+        Group group;
+
+        // Number of candles in message
+        public int count;
+
+        // Encoded message
+        public ByteBuf data;
+
+        Snapshot(Group group, int count, ByteBuf data) {
+            this.group = group;
+            this.count = count;
+            this.data = data;
+        }
+    }
+}
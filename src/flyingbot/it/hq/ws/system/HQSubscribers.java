@@ -5,89 +5,207 @@ import flyingbot.it.data.hq.MarketData;
 import flyingbot.it.data.hq.TransferredData;
 import flyingbot.it.util.Common;
 import flyingbot.it.util.Result;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
-import io.netty.channel.group.ChannelGroup;
-import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
-import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 import static flyingbot.it.hq.ws.resources.Constants.*;
 
-public class HQSubscribers {
+public class HQSubscribers implements HQDataSink {
+    // Negotiated client protocol of channel
+    public final static AttributeKey<Integer> ProtocolKey = AttributeKey.valueOf("client.ws.protocol");
+    // Live data held until history is sent, key: instrument
+    public final static AttributeKey<ConcurrentHashMap<String, PendingFrames>> PendingKey
+            = AttributeKey.valueOf("client.ws.pending");
+    // Subscribed instruments of channel, removed when channel is closed
+    public final static AttributeKey<Set<String>> SubscribedKey = AttributeKey.valueOf("client.ws.subscribed");
+
+    // Instrument ids
+    public HQInstruments instruments;
     // Market data keeper
     public HQDataKeeper dataKeeper;
-    // Subscription group
-    protected ReentrantReadWriteLock rwLock;
-    protected HashMap<String, ChannelGroup> subscription;
-    // LRU
-    protected ModifiedLRU lru;
+    // Subscribed channels by instrument id. Arrays are never modified but replaced on
+    // subscription change, so broadcast reads the current array without lock.
+    protected HQInstruments.Table<Channel[]> subscription;
+    // Instruments whose data are cached
+    protected HQInstrumentCache cache;
     // Sequence
     AtomicLong sequence;
+    // Allocator for outbound frames
+    ByteBufAllocator alloc;
+    // Pre-encoded heartbeat, shared by all channels
+    ByteBuf heartbeat;
+    // Streaming JSON encoder
+    HQJsonWriter writer;
+    // Binary encoder
+    HQBinaryWriter binWriter;
+    // History loading and sending, off the event loops
+    ThreadPoolExecutor historyExecutor;
+    // Live data to channels not writable
+    public HQSlowConsumers slowConsumers;
+    // Latest-value ticks for conflated channels
+    public HQConflator conflator;
+    // 1m candles from ticks, null if off
+    HQTickCandleBuilder tickCandles;
     // Logger instance
     Logger LOG;
 
     public HQSubscribers(Logger log) {
         // Create data keeper
-        dataKeeper = new HQDataKeeper(log);
+        instruments = new HQInstruments();
+        dataKeeper = new HQDataKeeper(instruments, log);
 
         // Atom seq
         sequence = new AtomicLong(0);
 
+        // Pooled buffers for outbound frames
+        alloc = PooledByteBufAllocator.DEFAULT;
+        heartbeat = Unpooled.unreleasableBuffer(
+                Unpooled.copiedBuffer(HeartbeatMsg, StandardCharsets.UTF_8));
+        writer = new HQJsonWriter(alloc);
+        binWriter = new HQBinaryWriter(alloc);
+
         // Set logger
         LOG = log;
 
-        // LRU
-        lru = new ModifiedLRU(LRUSize);
+        // Cache bounded by estimated bytes of candles and ticks,
+        // instruments having subscribers stay cached
+        cache = new HQInstrumentCache(Cache_MaxBytes, Cache_ProtectedRatio, new HQInstrumentCache.Weigher() {
+
+            @Override
+            public long weigh(int id) {
+                return dataKeeper.estimatedBytes(id);
+            }
+
+        }, new HQInstrumentCache.Pinned() {
+
+            @Override
+            public boolean isPinned(int id) {
+                return subscription.get(id) != null;
+            }
+
+        });
+
+        // Slow consumer policy
+        slowConsumers = new HQSlowConsumers(SlowConsumer_Policy, SlowConsumer_DisconnectMillis, log);
+        conflator = new HQConflator(slowConsumers);
+
+        // History executor
+        historyExecutor = new ThreadPoolExecutor(History_Threads, History_Threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(History_QueueSize), new DefaultThreadFactory("hq-history", true));
+        historyExecutor.allowCoreThreadTimeOut(true);
+
+        // Tick candles are sent like upstream ones
+        if (TickCandle_Mode != TickCandle_Off) {
+            tickCandles = new HQTickCandleBuilder(TickCandle_Mode, new HQTickCandleBuilder.CandleSink() {
+
+                @Override
+                public void onCandle(int id, Candle c) {
+                    sendCandle(id, c);
+                }
+
+            }, dataKeeper, instruments, log);
+        }
 
         // Create subscription record
-        rwLock = new ReentrantReadWriteLock();
-        subscription = new HashMap<String, ChannelGroup>();
+        subscription = new HQInstruments.Table<Channel[]>();
     }
 
-    public Result subscribe(String inst, Channel c) {
-        // Initialize ChannelGroup when not exist
-        rwLock.writeLock().lock();
-        if (!subscription.containsKey(inst)) {
-            subscription.put(inst, new DefaultChannelGroup(ImmediateEventExecutor.INSTANCE));
+    public Result subscribe(final String inst, final Channel c) {
+        // Client may subscribe before feed sends the instrument
+        int id = instruments.clientIdOf(inst);
+        if (id < 0) {
+            return new Result(Result.Error, -1, "Invalid instrument.");
         }
 
-        // Add Channel to group if no subscription found
-        if (!subscription.get(inst).contains(c)) {
-            // Add to ChannelGroup
-            subscription.get(inst).add(c);
+        // Record subscription on channel before publishing it, so close listener
+        // removes it, one listener per channel
+        Set<String> insts = ConcurrentHashMap.newKeySet();
+        Set<String> old = c.attr(SubscribedKey).setIfAbsent(insts);
+        if (old != null) {
+            insts = old;
+        } else {
+            c.closeFuture().addListener(new ChannelFutureListener() {
+
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    for (String i : c.attr(SubscribedKey).get()) {
+                        unSubscribe(i, c);
+                    }
+                }
 
-            // unlock
-            rwLock.writeLock().unlock();
+            });
+        }
+        insts.add(inst);
+
+        // Copy on write, concurrent broadcasts still see the old array
+        while (true) {
+            Channel[] cur = subscription.get(id);
+            Channel[] arr = cur != null ? cur : new Channel[0];
+            for (Channel x : arr) {
+                if (x == c) {
+                    return new Result(Result.Error, -1, "Duplecated subscription.");
+                }
+            }
 
-            // Refresh LRU
-            refreshLRU(inst);
+            Channel[] n = Arrays.copyOf(arr, arr.length + 1);
+            n[arr.length] = c;
+            if (subscription.compareAndSet(id, cur, n)) {
+                break;
+            }
+        }
 
-            return new Result();
-        } else {
-            // unlock
-            rwLock.writeLock().unlock();
-            return new Result(Result.Error, -1, "Duplecated subscription.");
+        // Channel closed while subscribing, close listener may have run before
+        if (!c.isActive()) {
+            unSubscribe(inst, c);
+            return new Result(Result.Error, -1, "Channel closed.");
         }
+
+        // Refresh cache
+        refreshCache(id);
+        return new Result();
     }
 
-    protected void refreshLRU(String inst) {
-        if (!lru.contains(inst)) {
-            LOG.info("New cache: " + inst);
+    protected void refreshCache(int id) {
+        if (!cache.contains(id)) {
+            LOG.info("New cache: " + instruments.nameOf(id));
         }
+        removeFromCache(cache.access(id));
+    }
+
+    /**
+     * Estimate sizes of cached instruments again, and evict if cache is over budget.
+     */
+    public void trimCache() {
+        removeFromCache(cache.trim());
+    }
 
-        // Refresh LRU
-        String r = lru.refreshInst(inst);
-        if (r != null) {
+    protected void removeFromCache(List<Integer> ids) {
+        for (int id : ids) {
+            String r = instruments.nameOf(id);
             boolean ret = dataKeeper.removeInstPack(r);
             if (ret) {
-                LOG.info("Remove " + r + " from cache.");
+                LOG.info("Remove " + r + " from cache, " + cache.stats());
             } else {
                 LOG.warning("Remove " + r + " from cache failed.");
             }
@@ -95,48 +213,190 @@ public class HQSubscribers {
     }
 
     public Result unSubscribe(String inst, Channel c) {
-        rwLock.writeLock().lock();
-
-        // Check if instrument recod found
-        if (!subscription.containsKey(inst)) {
-            //unlock
-            rwLock.writeLock().unlock();
-            return new Result(Result.Error, -1, "Instrument record not found.");
+        Set<String> insts = c.attr(SubscribedKey).get();
+        if (insts != null) {
+            insts.remove(inst);
         }
 
-        if (!subscription.get(inst).contains(c)) {
-            //unlock
-            rwLock.writeLock().unlock();
-            return new Result(Result.Error, -1, "Not subscribe the instrument yet.");
+        // Copy on write, the record is removed with its last channel
+        int id = instruments.find(inst);
+        while (true) {
+            // Check if instrument recod found
+            Channel[] old = subscription.get(id);
+            if (old == null) {
+                return new Result(Result.Error, -1, "Instrument record not found.");
+            }
+
+            int i = 0;
+            while (i < old.length && old[i] != c) {
+                ++i;
+            }
+            if (i == old.length) {
+                return new Result(Result.Error, -1, "Not subscribe the instrument yet.");
+            }
+
+            Channel[] n = null;
+            if (old.length > 1) {
+                n = new Channel[old.length - 1];
+                System.arraycopy(old, 0, n, 0, i);
+                System.arraycopy(old, i + 1, n, i, n.length - i);
+            }
+            if (subscription.compareAndSet(id, old, n)) {
+                return new Result();
+            }
         }
+    }
 
-        // Remove subscription record
-        subscription.get(inst).remove(c);
-        return new Result();
+    /**
+     * Get id of instrument from inside feed, a new instrument is registered. Client
+     * input must use {@link HQInstruments#clientIdOf(String)} instead.
+     */
+    @Override
+    public int instrumentId(String inst) {
+        return instruments.idOf(inst);
     }
 
-    public Result onMarketData(MarketData d) {
+    @Override
+    public Result onMarketData(int id, MarketData d) {
         // Forward data
-        Result r = sendData(d.InstrumentID, MarketData.DataType, d);
+        Result r = sendData(id, d.InstrumentID, MarketData.DataType, d);
 
-        // Only update data that is marked in LRU
-        if (lru.contains(d.InstrumentID)) {
-            dataKeeper.onMarketData(d);
+        // Only update data of cached instrument
+        if (cache.contains(id)) {
+            dataKeeper.onMarketData(id, d);
         }
 
         // Update dominant instrument
-        dataKeeper.updateDominantInstrument(d);
+        dataKeeper.updateDominantInstrument(id, d);
+
+        // Build candles from ticks
+        if (tickCandles != null) {
+            tickCandles.onMarketData(id, d);
+        }
         return r;
     }
 
-    public Result onCandle(Candle c) {
-        Result r = sendData(c.InstrumentID, Candle.DataType, c);
-        if (lru.contains(c.InstrumentID)) {
-            dataKeeper.onCandle(c);
+    @Override
+    public Result onCandle(int id, Candle c) {
+        // Higher periods are derived from 1m candles
+        if (dataKeeper.isDerived(c.Period)) {
+            return new Result();
+        }
+
+        // Tick candles may replace upstream 1m candles
+        if (tickCandles != null && c.Period == Candle_1m && !tickCandles.onUpstream(id, c)) {
+            return new Result();
+        }
+        return sendCandle(id, c);
+    }
+
+    /**
+     * Send candle to clients and update cache, candles derived from it are also sent.
+     */
+    protected Result sendCandle(int id, Candle c) {
+        Result r = sendData(id, c.InstrumentID, Candle.DataType, c);
+        if (cache.contains(id)) {
+            for (Candle d : dataKeeper.onCandle(id, c)) {
+                sendData(id, d.InstrumentID, Candle.DataType, d);
+            }
         }
         return r;
     }
 
+    /**
+     * Subscribe instrument and send history asynchronously. Live data of the
+     * instrument is held until history is sent, so client receives old data first.
+     *
+     * @return error if subscription failed, history is not sent then
+     */
+    public Result subscribeWithHistory(final String inst, final Channel c, final int number) {
+        // Hold live data before joining subscription
+        boolean held = holdLiveData(inst, c);
+
+        Result r = subscribe(inst, c);
+        if (r.equals(Result.Error)) {
+            if (held) {
+                releaseLiveData(inst, c);
+            }
+            return r;
+        }
+
+        CompletableFuture<Void> f;
+        try {
+            f = CompletableFuture.runAsync(new Runnable() {
+
+                @Override
+                public void run() {
+                    sendHistoryData(inst, c, number);
+                }
+
+            }, historyExecutor);
+        } catch (RejectedExecutionException e) {
+            // Too many history requests queued, send live data only
+            LOG.warning("History request rejected, " + inst + ", " + c);
+            f = new CompletableFuture<>();
+            f.completeExceptionally(e);
+        }
+
+        // Send held live data after history, also if history failed
+        f.whenComplete(new BiConsumer<Void, Throwable>() {
+
+            @Override
+            public void accept(Void v, Throwable t) {
+                if (t != null) {
+                    LOG.warning("Sending history failed, " + inst + ", " + c + ", " + t.getMessage());
+                }
+                releaseLiveData(inst, c);
+
+                // History may have grown the cache
+                trimCache();
+            }
+
+        });
+        return r;
+    }
+
+    /**
+     * @return false if live data is already held
+     */
+    protected boolean holdLiveData(String inst, Channel c) {
+        ConcurrentHashMap<String, PendingFrames> m = c.attr(PendingKey).get();
+        if (m == null) {
+            c.attr(PendingKey).setIfAbsent(new ConcurrentHashMap<String, PendingFrames>());
+            m = c.attr(PendingKey).get();
+        }
+        return m.putIfAbsent(inst, new PendingFrames()) == null;
+    }
+
+    protected void releaseLiveData(String inst, Channel c) {
+        ConcurrentHashMap<String, PendingFrames> m = c.attr(PendingKey).get();
+        PendingFrames q = m != null ? m.get(inst) : null;
+        if (q == null) {
+            return;
+        }
+
+        // Send before removing, so that later data is sent after held data
+        int dropped = q.drain(c);
+        m.remove(inst, q);
+        if (dropped > 0) {
+            LOG.warning("Dropped " + dropped + " live data held for history, " + inst + ", " + c);
+        }
+    }
+
+    /**
+     * Hold frame if channel is waiting for history of the instrument.
+     *
+     * @return true if frame is held
+     */
+    protected boolean holdFrame(Channel c, String inst, WebSocketFrame f) {
+        ConcurrentHashMap<String, PendingFrames> m = c.attr(PendingKey).get();
+        if (m == null) {
+            return false;
+        }
+        PendingFrames q = m.get(inst);
+        return q != null && q.offer(f);
+    }
+
     public void sendHistoryData(String inst, Channel c, int number) {
         // Get all periods
         Set<Integer> periods = dataKeeper.getCandlePeriods(inst);
@@ -148,67 +408,22 @@ public class HQSubscribers {
         try {
             // Get candles for each period
             for (int p : periods) {
-                // Change number of candles to send.
-                // Day candles are a lot less than 1m candles.
-                int num = number;
-
-                // 240 days a year
-                if (p == Candle_1440m && number > Candle1440_MaxNum) {
-                    num = Candle1440_MaxNum;
-                }
-
-                // 6 hours each day
-                if (p == Candle_60m && number > Candle60_MaxNum) {
-                    num = Candle60_MaxNum;
-                }
-
-                // 4 quarters each hour
-                if (p == Candle_15m && number > Candle15_MaxNum) {
-                    num = Candle15_MaxNum;
-                }
-
-                // 3 5-minutes each quarter
-                if (p == Candle_5m && number > Candle5_MaxNum) {
-                    num = Candle5_MaxNum;
-                }
-
-                // Query candles
-                List<Candle> candles = dataKeeper.getCandles(inst, p, num);
-                if (candles == null || candles.size() < 1) {
+                // Query and send candles
+                int n = sendHistoryCandles(c, inst, p, historyNumber(p, number));
+                if (n < 1) {
                     LOG.warning("Candles not found, " + inst);
                     continue;
                 }
 
-                // Prepare array
-                JSONObject[] arr = new JSONObject[candles.size()];
-
-                // Set array
-                int i = 0;
-                for (Candle cd : candles) {
-                    arr[i++] = cd.ToJSON();
-                }
-
-                // Send data
-                String msg = wrapData(OldCandleType, sequence.incrementAndGet(), arr);
-                sendChannelData(c, msg);
-
                 // log
-                LOG.info("Sent candles," + inst + "(" + p + "m, " + candles.size() + ")" + " to " + c);
+                LOG.info("Sent candles," + inst + "(" + p + "m, " + n + ")" + " to " + c);
             }
 
             // Send market data
             List<MarketData> l = dataKeeper.queryMarketData(inst, MarketDataToClient_Num);
             if (l.size() > 0) {
-                // Prepare JSON
-                JSONObject[] arr = new JSONObject[l.size()];
-                int i = 0;
-                for (MarketData d : l) {
-                    arr[i++] = d.ToJSON();
-                }
-
-                // Get JSON string
-                String msg = wrapData(OldMarketDataType, sequence.incrementAndGet(), arr);
-                sendChannelData(c, msg);
+                // Send data
+                sendChannelData(c, OldMarketDataType, sequence.incrementAndGet(), l);
 
                 // log
                 LOG.info("Sent mds," + inst + "(" + l.size() + ")" + " to " + c);
@@ -220,6 +435,204 @@ public class HQSubscribers {
         }
     }
 
+    /**
+     * Change number of candles to send.
+     * Day candles are a lot less than 1m candles.
+     */
+    protected int historyNumber(int p, int number) {
+        int num = number;
+
+        // 240 days a year
+        if (p == Candle_1440m && number > Candle1440_MaxNum) {
+            num = Candle1440_MaxNum;
+        }
+
+        // 6 hours each day
+        if (p == Candle_60m && number > Candle60_MaxNum) {
+            num = Candle60_MaxNum;
+        }
+
+        // 4 quarters each hour
+        if (p == Candle_15m && number > Candle15_MaxNum) {
+            num = Candle15_MaxNum;
+        }
+
+        // 3 5-minutes each quarter
+        if (p == Candle_5m && number > Candle5_MaxNum) {
+            num = Candle5_MaxNum;
+        }
+
+        // Records of a binary message
+        if (p == Candle_1m && number > Candle1_MaxNum) {
+            num = Candle1_MaxNum;
+        }
+        return num;
+    }
+
+    /**
+     * Load history of instruments into cache before clients connect, instruments
+     * are loaded in parallel and all periods of an instrument in turn.
+     *
+     * @param insts   instruments
+     * @param number  number of candles of each period, as clients query
+     * @param timeout max time to wait (ms), loading goes on in background after it
+     * @return true if all instruments are loaded in time
+     */
+    public boolean warmUp(Collection<String> insts, final int number, long timeout) {
+        final long start = System.currentTimeMillis();
+        final AtomicLong candles = new AtomicLong(0);
+        // Caller loads when queue is full, so queued instruments are bounded
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(Warmup_Threads, Warmup_Threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Warmup_QueueSize), new DefaultThreadFactory("hq-warmup", true),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        List<CompletableFuture<Void>> fs = new ArrayList<>();
+        for (final String inst : new LinkedHashSet<>(insts)) {
+            // Cached like a subscription, so live data keeps it updated. Configured
+            // instruments are registered, feed may not have sent them yet
+            refreshCache(instruments.idOf(inst));
+
+            fs.add(CompletableFuture.runAsync(new Runnable() {
+
+                @Override
+                public void run() {
+                    long t = System.currentTimeMillis();
+                    int n = 0;
+                    for (int p : dataKeeper.getCandlePeriods(inst)) {
+                        List<Candle> l = dataKeeper.getCandles(inst, p, historyNumber(p, number));
+                        n += l != null ? l.size() : 0;
+                    }
+                    candles.addAndGet(n);
+                    LOG.info("Warm up " + inst + ", " + n + " candles in " + (System.currentTimeMillis() - t) + "ms");
+                }
+
+            }, exec));
+        }
+        exec.shutdown();
+
+        boolean done = true;
+        try {
+            long left = Math.max(0, timeout - (System.currentTimeMillis() - start));
+            CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[0])).get(left, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            done = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        } catch (ExecutionException e) {
+            LOG.warning("Warm-up failed, " + e.getCause());
+        }
+
+        int loaded = 0;
+        for (CompletableFuture<Void> f : fs) {
+            loaded += f.isDone() && !f.isCompletedExceptionally() ? 1 : 0;
+        }
+        trimCache();
+        LOG.info("Warm-up " + (done ? "done" : "timed out") + ", " + loaded + "/" + fs.size() + " instruments, "
+                + candles.get() + " candles in " + (System.currentTimeMillis() - start) + "ms, " + cache.stats());
+        return done;
+    }
+
+    /**
+     * Send history candles. Encoded message is cached in data keeper, clients
+     * querying the same candles in the same protocol share it, see {@link HQSnapshotCache}.
+     * For clients with permessage-deflate, the message is compressed once and sent as is.
+     * Only the message body is cached, each sending has a head with a new sequence.
+     *
+     * @return number of candles sent
+     */
+    protected int sendHistoryCandles(Channel c, String inst, int period, int num) {
+        HQSnapshotCache snapshots = dataKeeper.snapshots;
+        int p = protocolOf(c);
+        boolean deflate = HQDeflate.isEnabled(c);
+        String key = HQSnapshotCache.key(inst, period, num, p + (deflate ? "z" : ""));
+
+        ByteBuf body;
+        int count;
+        HQSnapshotCache.Snapshot s = snapshots.get(key);
+        if (s != null) {
+            body = s.data;
+            count = s.count;
+        } else {
+            // Read generation before candles, message of changed candles isn't cached
+            long gen = snapshots.generation(inst, period);
+            List<Candle> candles = dataKeeper.getCandles(inst, period, num);
+            if (candles == null || candles.size() < 1) {
+                return 0;
+            }
+
+            body = encodeBody(p, OldCandleType, candles);
+            if (deflate) {
+                ByteBuf raw = body;
+                try {
+                    body = HQDeflate.compress(alloc, raw);
+                } finally {
+                    raw.release();
+                }
+            }
+            count = candles.size();
+            body = snapshots.put(inst, period, key, gen, count, body);
+        }
+
+        ByteBuf msg;
+        try {
+            // Head with sequence of this sending, stored uncompressed before compressed body
+            ByteBuf head = encodeHead(p, OldCandleType, sequence.incrementAndGet());
+            if (deflate) {
+                ByteBuf raw = head;
+                try {
+                    head = HQDeflate.store(alloc, raw);
+                } finally {
+                    raw.release();
+                }
+            }
+            msg = alloc.compositeBuffer(2).addComponents(true, head, body);
+        } catch (RuntimeException e) {
+            body.release();
+            LOG.warning("Encoding history failed, " + c + ", " + e.getMessage());
+            return 0;
+        }
+
+        try {
+            // Compressed message is sent as is
+            int rsv = deflate ? WebSocketExtension.RSV1 : 0;
+            WebSocketFrame f = p == Protocol_Binary
+                    ? new BinaryWebSocketFrame(true, rsv, msg)
+                    : new TextWebSocketFrame(true, rsv, msg);
+            c.writeAndFlush(f);
+        } catch (Exception e) {
+            LOG.warning("Sending data failed, " + c + ", " + e.getMessage());
+        }
+        return count;
+    }
+
+    /**
+     * Send subscription error.
+     * reponse format:
+     * {
+     * "InstrumentID" : "c1909",
+     * "Message" : "Invalid instrument."
+     * }
+     * <p>
+     * type: SubscriptionError
+     *
+     * @param inst instrument id
+     * @param msg  error message
+     * @param ch   channel
+     */
+    public void sendSubscriptionError(String inst, String msg, Channel ch) {
+        JSONObject[] arr = new JSONObject[1];
+        arr[0] = new JSONObject();
+        arr[0].put(InstrumentIDTag, inst);
+        arr[0].put(MessageTag, msg);
+
+        try {
+            sendChannelData(ch, wrapData(SubscriptionErrorType, sequence.incrementAndGet(), arr));
+        } catch (Exception e) {
+            LOG.warning("Sending subscription error failed, " + ch + ", " + e.getMessage());
+        }
+    }
+
     /**
      * Send dominant instrument id.
      * reponse format:
@@ -259,7 +672,82 @@ public class HQSubscribers {
         }
     }
 
+    /**
+     * Set the subprotocol negotiated in handshake. Binary clients receive the
+     * record schema before any data.
+     *
+     * @param c           channel
+     * @param subprotocol selected subprotocol, or null
+     */
+    public void protocol(Channel c, String subprotocol) {
+        if (binSubProtocol.equals(subprotocol)) {
+            c.attr(ProtocolKey).set(Protocol_Binary);
+            c.writeAndFlush(new BinaryWebSocketFrame(binWriter.writeSchema()));
+        } else {
+            c.attr(ProtocolKey).set(Protocol_Json);
+        }
+    }
+
+    protected int protocolOf(Channel c) {
+        Integer p = c.attr(ProtocolKey).get();
+        return p == null ? Protocol_Json : p;
+    }
+
+    protected ByteBuf encode(int protocol, String type, long seq, TransferredData<?> d) {
+        if (protocol == Protocol_Binary) {
+            return binWriter.write(type, seq, d);
+        } else {
+            return writer.write(type, seq, d);
+        }
+    }
+
+    protected ByteBuf encode(int protocol, String type, long seq, Collection<? extends TransferredData<?>> data) {
+        if (protocol == Protocol_Binary) {
+            return binWriter.write(type, seq, data);
+        } else {
+            return writer.write(type, seq, data);
+        }
+    }
+
+    protected ByteBuf encodeHead(int protocol, String type, long seq) {
+        if (protocol == Protocol_Binary) {
+            return binWriter.writeHead(type, seq);
+        } else {
+            return writer.writeHead(seq);
+        }
+    }
+
+    protected ByteBuf encodeBody(int protocol, String type, Collection<? extends TransferredData<?>> data) {
+        if (protocol == Protocol_Binary) {
+            return binWriter.writeBody(type, data);
+        } else {
+            return writer.writeBody(type, data);
+        }
+    }
+
+    protected WebSocketFrame frame(int protocol, ByteBuf msg) {
+        if (protocol == Protocol_Binary) {
+            return new BinaryWebSocketFrame(msg);
+        } else {
+            return new TextWebSocketFrame(msg);
+        }
+    }
+
+    protected void sendChannelData(Channel c, String type, long seq, Collection<? extends TransferredData<?>> data) {
+        int p = protocolOf(c);
+        try {
+            // Can't use await because sending and waiting is in the same thread
+            c.writeAndFlush(frame(p, encode(p, type, seq, data)));
+        } catch (Exception e) {
+            LOG.warning("Sending data failed, " + c + ", " + e.getMessage());
+        }
+    }
+
     protected void sendChannelData(Channel c, String msg) {
+        sendChannelData(c, encode(msg));
+    }
+
+    protected void sendChannelData(Channel c, ByteBuf msg) {
         try {
             // Can't use await because sending and waiting is in the same thread
             c.writeAndFlush(new TextWebSocketFrame(msg));
@@ -268,10 +756,19 @@ public class HQSubscribers {
         }
     }
 
-    protected Result sendData(String inst, String type, TransferredData<?> d) {
-        JSONObject[] arr = new JSONObject[1];
-        arr[0] = d.ToJSON();
-        return broadcast(inst, wrapData(type, sequence.incrementAndGet(), arr));
+    protected Result sendData(int id, String inst, String type, TransferredData<?> d) {
+        return broadcast(id, inst, type, sequence.incrementAndGet(), d);
+    }
+
+    /**
+     * Encode message into a pooled buffer, so it is encoded only once no matter
+     * how many channels it is written to. Caller owns the returned buffer.
+     *
+     * @param msg message text
+     * @return UTF-8 encoded buffer
+     */
+    protected ByteBuf encode(String msg) {
+        return ByteBufUtil.writeUtf8(alloc, msg);
     }
 
     /**
@@ -296,148 +793,154 @@ public class HQSubscribers {
         return obj.toString(0);
     }
 
-    protected Result broadcast(String inst, String msg) {
+    /**
+     * Write data to all subscribers of the instrument. Data is encoded at most
+     * once per protocol, and each channel gets a retained duplicate of the same
+     * buffer, which is released after the last write completes.
+     *
+     * @param id   instrument id, see {@link HQInstruments}
+     * @param inst instrument
+     * @param type message type
+     * @param seq  message sequence
+     * @param d    data
+     * @return result
+     */
+    protected Result broadcast(int id, String inst, String type, long seq, TransferredData<?> d) {
         Result res = new Result();
-        rwLock.readLock().lock();
+        ByteBuf[] encoded = new ByteBuf[Protocol_Binary + 1];
 
         // Check if instrument recod found
-        if (!subscription.containsKey(inst)) {
-            //unlock
-            rwLock.readLock().unlock();
-            return new Result(Result.Success, 0, "No subscription.");
-        }
-
-        // Get the ChannelGroup
-        ChannelGroup g = subscription.get(inst);
+        Channel[] g = subscription.get(id);
         if (g == null) {
-            //unlock
-            rwLock.readLock().unlock();
-            return new Result(Result.Error, -1, "Subscription null ref.");
+            return new Result(Result.Success, 0, "No subscription.");
         }
 
-        // Write data to group
         try {
-            // Can't use await because sending and waiting is in the same thread
-            g.writeAndFlush(new TextWebSocketFrame(msg));
+            // Write data to each subscribed channel
+            for (Channel c : g) {
+                try {
+                    // Encode on first channel of the protocol
+                    int p = protocolOf(c);
+                    if (encoded[p] == null) {
+                        encoded[p] = encode(p, type, seq, d);
+                    }
 
-        } catch (Exception e) {
-            res = new Result(Result.Error, -1, "Sending data failed, " + e.getMessage());
+                    // Can't use await because sending and waiting is in the same thread
+                    // Hold data if client is waiting for history
+                    WebSocketFrame f = frame(p, encoded[p].retainedDuplicate());
+                    // Conflated channel gets the latest tick later
+                    if (!holdFrame(c, inst, f) && !conflator.offer(c, id, d, f)) {
+                        slowConsumers.write(c, id, d, f);
+                    }
+                } catch (Exception e) {
+                    res = new Result(Result.Error, -1, "Sending data failed, " + e.getMessage());
+                }
+            }
+        } finally {
+            // Release the creator's reference, channels hold their own
+            for (ByteBuf b : encoded) {
+                if (b != null) {
+                    b.release();
+                }
+            }
         }
-
-        // unlock
-        rwLock.readLock().unlock();
         return res;
     }
 
+    /**
+     * Send pending updates of tick candles of instruments from, from + step, and so on,
+     * called on the thread their data are sent on.
+     */
+    public void flushTickCandles(int from, int step) {
+        if (tickCandles != null) {
+            tickCandles.flush(from, step);
+        }
+    }
+
     public Result SendHeartbeatAll() {
         Result res = new Result();
-        rwLock.readLock().lock();
 
-        for (ChannelGroup g : subscription.values()) {
+        // Iterating doesn't block subscription changes
+        for (int id = 0, n = instruments.size(); id < n; ++id) {
+            Channel[] g = subscription.get(id);
             if (g == null) {
                 continue;
             }
 
             try {
-                // Can't use await because sending and waiting is in the same thread
-                g.writeAndFlush(new TextWebSocketFrame(HeartbeatMsg));
+                for (Channel c : g) {
+                    // Slow channel has data queued already
+                    if (!slowConsumers.isWritable(c)) {
+                        continue;
+                    }
+
+                    // Can't use await because sending and waiting is in the same thread
+                    c.writeAndFlush(new TextWebSocketFrame(heartbeat.duplicate()));
+                }
             } catch (Exception e) {
                 res = new Result(Result.Error, -1, "Sending heartbeat failed, " + e.getMessage());
                 break;
             }
         }
-
-        // unlock
-        rwLock.readLock().unlock();
         return res;
     }
 
     public void closeAll() {
-        for (ChannelGroup g : subscription.values()) {
-            g.close();
+        historyExecutor.shutdownNow();
+        conflator.destroy();
+        for (int id = 0, n = instruments.size(); id < n; ++id) {
+            Channel[] g = subscription.get(id);
+            if (g == null) {
+                continue;
+            }
+            for (Channel c : g) {
+                c.close();
+            }
         }
     }
 
-    class ModifiedLRU {
-        // Subscribed instruments
-        protected HashSet<String> instSet;
-
-        // LRU list
-        protected LinkedList<String> instList;
-        protected ReentrantReadWriteLock lock;
-
-        // Cache size
-        int size;
+    /**
+     * Live frames held for a channel until history is sent.
+     */
+    static class PendingFrames {
+        ArrayDeque<WebSocketFrame> frames = new ArrayDeque<>();
+        boolean done = false;
+        int dropped = 0;
 
-        public ModifiedLRU(int size) {
-            if (size < 1) {
-                size = 1;
+        /**
+         * Hold frame, drop the oldest if too many are held.
+         *
+         * @return false if frames are already sent, caller sends the frame
+         */
+        synchronized boolean offer(WebSocketFrame f) {
+            if (done) {
+                return false;
             }
-            this.size = size;
-            instSet = new HashSet<String>();
-            instList = new LinkedList<String>();
-            lock = new ReentrantReadWriteLock();
+            if (frames.size() >= History_MaxHeldFrames) {
+                frames.pollFirst().release();
+                ++dropped;
+            }
+            frames.addLast(f);
+            return true;
         }
 
         /**
-         * Refresh LRU list and return the removed element (outbound size)
+         * Send held frames, later frames are sent by caller.
          *
-         * @param inst Instrument
-         * @return Instrument which is removed out of the list or null if nothing performed
+         * @return number of dropped frames
          */
-        public String refreshInst(String inst) {
-            String ret = null;
-            lock.writeLock().lock();
-
-            // New instrument
-            if (!instSet.contains(inst)) {
-                // Check if needs remove the last element
-                if (instList.size() >= this.size) {
-                    ret = instList.pollLast();
-                    instSet.remove(ret);
-                }
-
-                // Update list
-                instSet.add(inst);
-                instList.addLast(inst);
-            } else {
-                int index = -1;
-                // Remove the current element
-                for (int i = 0; i < instList.size(); ++i) {
-                    if (instList.get(i).compareToIgnoreCase(inst) == 0) {
-                        instList.remove(i);
-                        index = i;
-                        break;
-                    }
-                }
-
-                // Move element to left
-                if (index <= 0) {
-                    index = 0;
+        synchronized int drain(Channel c) {
+            done = true;
+            WebSocketFrame f;
+            while ((f = frames.pollFirst()) != null) {
+                if (c.isActive()) {
+                    c.write(f);
                 } else {
-                    --index;
+                    f.release();
                 }
-                instList.add(index, inst);
             }
-
-            lock.writeLock().unlock();
-            return ret;
-        }
-
-        public boolean contains(String inst) {
-            boolean ret = false;
-            lock.readLock().lock();
-            ret = instSet.contains(inst);
-            lock.readLock().unlock();
-            return ret;
-        }
-
-        public List<String> getAll() {
-            List<String> ret = new ArrayList<String>();
-            lock.readLock().lock();
-            ret.addAll(instList);
-            lock.readLock().unlock();
-            return ret;
+            c.flush();
+            return dropped;
         }
     }
 }
@@ -0,0 +1,415 @@
+package flyingbot.it.hq.ws.system;
+
+import flyingbot.it.data.hq.Candle;
+import flyingbot.it.data.hq.MarketData;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static flyingbot.it.hq.ws.resources.Constants.*;
+
+/**
+ * Build 1m candles from ticks.
+ * <p>
+ * Each instrument keeps the building candle, the last finished candle and the last
+ * upstream candle in primitive fields, a tick only updates them. Candle objects are
+ * created when sent, at most once per update interval and when a minute finishes.
+ * <p>
+ * A tick falls into the minute of its update time, except that a tick at session
+ * close belongs to the last minute of session, and a call auction tick before
+ * session open belongs to the open minute. Volume of tick is the increase of the
+ * trading day's volume, a tick without trade doesn't start a candle.
+ * <p>
+ * In primary mode tick candles replace upstream 1m candles. In fallback mode they
+ * are sent only if upstream candles of the instrument stop, or never come since its
+ * first tick. In compare mode they are not sent, but compared with the upstream
+ * candle of the same minute, divergence is logged and counted.
+ * <p>
+ * Serial number of tick candle follows that of the upstream or cached candles, a
+ * tick candle isn't sent until either is known. Candles of an instrument are sent
+ * under its lock, so a flushed update never overtakes a newer one.
+ */
+public class HQTickCandleBuilder {
+    // Mode, see TickCandle_Xxx
+    int mode;
+
+    // Minutes of day at session close, and before auction open
+    boolean[] closeMinutes, auctionMinutes;
+
+    // Building state by instrument id
+    HQInstruments instruments;
+    HQInstruments.Table<TickState> states;
+
+    // Sent candles
+    CandleSink sink;
+
+    // Cached candles, serial number of tick candle follows the cached one
+    HQDataKeeper dataKeeper;
+
+    // Stats
+    AtomicLong built, matched, diverged, unmatched;
+
+    // Logger instance
+    Logger LOG;
+
+    public HQTickCandleBuilder(int mode, CandleSink sink, HQDataKeeper dataKeeper, HQInstruments instruments,
+                               Logger log) {
+        this.mode = mode;
+        this.sink = sink;
+        this.dataKeeper = dataKeeper;
+        this.instruments = instruments;
+        this.LOG = log;
+        this.states = new HQInstruments.Table<>();
+        this.closeMinutes = minutesOf(Session_Closes, 0);
+        this.auctionMinutes = minutesOf(Session_AuctionOpens, -1);
+        this.built = new AtomicLong(0);
+        this.matched = new AtomicLong(0);
+        this.diverged = new AtomicLong(0);
+        this.unmatched = new AtomicLong(0);
+    }
+
+    protected static boolean[] minutesOf(String[] times, int offset) {
+        boolean[] r = new boolean[1440];
+        for (String t : times) {
+            r[(HQCandleAggregator.minuteOf(t) + offset + 1440) % 1440] = true;
+        }
+        return r;
+    }
+
+    /**
+     * Update candle of instrument with tick, send candle if it's time.
+     *
+     * @param id instrument id, see {@link HQInstruments}
+     */
+    public void onMarketData(int id, MarketData md) {
+        TickState s = stateOf(id);
+        Candle finished = null, building = null;
+        long now = System.currentTimeMillis();
+
+        synchronized (s) {
+            // Minute of tick, adjusted at session boundaries
+            int minute = HQCandleAggregator.minuteOf(md.UpdateTime);
+            if (closeMinutes[minute] && secondOf(md.UpdateTime) == 0) {
+                minute = (minute + 1439) % 1440;
+            } else if (auctionMinutes[minute]) {
+                minute = (minute + 1) % 1440;
+            }
+
+            // Trading day volume restarts from zero, unknown before the first tick seen
+            long day = HQCandleAggregator.digits(md.TradingDay);
+            if (day != s.day) {
+                s.lastVolume = s.day == 0 ? md.Volume : 0;
+                s.day = day;
+                s.tradingDay = md.TradingDay;
+            }
+            long traded = Math.max(0, md.Volume - s.lastVolume);
+            s.lastVolume = Math.max(s.lastVolume, md.Volume);
+
+            long key = HQCandleAggregator.bucketOf(day, minute, Candle_1m);
+            if (key != s.cur.key) {
+                // Ticks without trade, e.g. after close, don't start candle
+                if (traded == 0) {
+                    return;
+                }
+
+                // Finish the building candle
+                if (s.cur.key != 0) {
+                    if (s.dirty && s.cur.serial >= 0) {
+                        finished = toCandle(md.InstrumentID, s.cur);
+                    }
+                    finish(md.InstrumentID, s);
+                }
+                s.cur.start(key, minute, s.tradingDay, nextSerial(md.InstrumentID, s, key),
+                        md.LastPrice, traded, md.OpenInterest);
+                built.incrementAndGet();
+            } else {
+                s.cur.update(md.LastPrice, traded, md.OpenInterest);
+            }
+            s.dirty = true;
+
+            // Throttle updates of the building candle
+            if (now - s.lastSent >= TickCandle_UpdateMillis) {
+                building = toCandle(md.InstrumentID, s.cur);
+                s.dirty = false;
+                s.lastSent = now;
+            }
+            if (!shouldSend(s, now)) {
+                finished = building = null;
+            }
+
+            if (finished != null) {
+                sink.onCandle(id, finished);
+            }
+            if (building != null) {
+                sink.onCandle(id, building);
+            }
+        }
+    }
+
+    /**
+     * Record upstream 1m candle.
+     *
+     * @return false if upstream candle isn't sent, in primary mode
+     */
+    public boolean onUpstream(int id, Candle c) {
+        TickState s = stateOf(id);
+        synchronized (s) {
+            long key = HQCandleAggregator.bucketOf(c.TradingDay, c.UpdateTime, Candle_1m);
+            s.upstreamTime = System.currentTimeMillis();
+            s.up.set(key, c.SerialNo, c.OpenPrice, c.HighPrice, c.LowPrice, c.ClosePrice, c.Volume, c.OpenInterest);
+
+            // Tick candles follow upstream serial number
+            if (key >= s.serialKey) {
+                s.serial = c.SerialNo;
+                s.serialKey = key;
+            }
+            if (key == s.cur.key && s.cur.serial < 0) {
+                s.cur.serial = c.SerialNo;
+            }
+
+            // Upstream candle of the finished minute, compare again with the newer one
+            if (mode == TickCandle_Compare && key == s.prev.key) {
+                compare(s);
+            }
+        }
+        return mode != TickCandle_Primary;
+    }
+
+    /**
+     * Send pending updates of building candles, e.g. the last update before session
+     * close isn't sent by ticks. Called on the thread sending ticks of the instruments.
+     *
+     * @param from the first instrument id
+     * @param step step of instrument ids
+     */
+    public void flush(int from, int step) {
+        long now = System.currentTimeMillis();
+        for (int id = from, n = instruments.size(); id < n; id += step) {
+            TickState s = states.get(id);
+            if (s == null) {
+                continue;
+            }
+
+            synchronized (s) {
+                if (s.dirty && now - s.lastSent >= TickCandle_UpdateMillis && shouldSend(s, now)) {
+                    s.dirty = false;
+                    s.lastSent = now;
+                    sink.onCandle(id, toCandle(instruments.nameOf(id), s.cur));
+                }
+            }
+        }
+    }
+
+    public String stats() {
+        return "tick candles: " + built.get() + ", matched: " + matched.get() + ", diverged: "
+                + diverged.get() + ", unmatched: " + unmatched.get();
+    }
+
+    protected TickState stateOf(int id) {
+        TickState s = states.get(id);
+        if (s == null) {
+            TickState n = new TickState();
+            s = states.putIfAbsent(id, n);
+            if (s == null) {
+                s = n;
+            }
+        }
+        return s;
+    }
+
+    protected boolean shouldSend(TickState s, long now) {
+        // Serial number is unknown
+        if (s.cur.serial < 0) {
+            return false;
+        }
+
+        switch (mode) {
+        case TickCandle_Primary:
+            return true;
+        case TickCandle_Fallback:
+            return now - s.upstreamTime > TickCandle_FallbackMillis;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Move the building candle to finished, count verdict of the previously finished one.
+     */
+    protected void finish(String inst, TickState s) {
+        if (mode == TickCandle_Compare && s.prev.key != 0) {
+            if (s.verdict == Verdict_Matched) {
+                matched.incrementAndGet();
+            } else if (s.verdict == Verdict_Diverged) {
+                diverged.incrementAndGet();
+                LOG.warning("Tick candle diverges from upstream, " + inst + ", tick: " + s.prev
+                        + ", upstream: " + s.prevUp);
+            } else {
+                unmatched.incrementAndGet();
+            }
+        }
+
+        s.prev.copy(s.cur);
+        s.verdict = Verdict_None;
+        if (mode == TickCandle_Compare && s.up.key == s.prev.key) {
+            compare(s);
+        }
+    }
+
+    protected void compare(TickState s) {
+        s.prevUp.copy(s.up);
+        s.verdict = s.prev.same(s.up) ? Verdict_Matched : Verdict_Diverged;
+    }
+
+    protected long nextSerial(String inst, TickState s, long key) {
+        // Upstream has sent candle of the minute
+        if (s.up.key == key) {
+            return s.up.serial;
+        }
+
+        // Follow cached candles if no upstream candle is seen
+        if (s.serialKey == 0) {
+            long last = dataKeeper.lastSerial(inst, Candle_1m);
+            if (last == Long.MIN_VALUE) {
+                // No serial number known, it's set by upstream candle of the minute
+                return -1;
+            }
+            s.serial = last;
+        }
+
+        ++s.serial;
+        s.serialKey = key;
+        return s.serial;
+    }
+
+    protected Candle toCandle(String inst, Bar b) {
+        Candle c = new Candle();
+        c.InstrumentID = inst;
+        c.Period = Candle_1m;
+        c.SerialNo = b.serial;
+        c.TradingDay = b.tradingDay;
+        c.UpdateTime = timeOf(b.minute);
+        c.OpenPrice = b.open;
+        c.HighPrice = b.high;
+        c.LowPrice = b.low;
+        c.ClosePrice = b.close;
+        c.Volume = b.volume;
+        c.OpenInterest = b.openInterest;
+        return c;
+    }
+
+    // Time HH:mm:00 of minute of day
+    protected static String timeOf(int minute) {
+        char[] t = {'0', '0', ':', '0', '0', ':', '0', '0'};
+        t[0] += minute / 600;
+        t[1] += minute / 60 % 10;
+        t[3] += minute % 60 / 10;
+        t[4] += minute % 10;
+        return new String(t);
+    }
+
+    // Second of time HH:mm:ss, 0 if absent
+    protected static int secondOf(String s) {
+        int i = s == null ? -1 : s.lastIndexOf(':');
+        if (i < 0 || i == s.indexOf(':')) {
+            return 0;
+        }
+
+        int v = 0;
+        for (++i; i < s.length() && Character.isDigit(s.charAt(i)); ++i) {
+            v = v * 10 + (s.charAt(i) - '0');
+        }
+        return v;
+    }
+
+    // Verdict of comparison
+    final static int Verdict_None = 0;
+    final static int Verdict_Matched = 1;
+    final static int Verdict_Diverged = 2;
+
+    /**
+     * Candle to send, called under the lock of the instrument's state.
+     */
+    public interface CandleSink {
+        void onCandle(int id, Candle c);
+    }
+
+    static class TickState {
+        // Trading day, and its volume at the last tick
+        long day;
+        String tradingDay;
+        long lastVolume;
+
+        // Building, finished and the last upstream candles
+        Bar cur = new Bar(), prev = new Bar(), up = new Bar(), prevUp = new Bar();
+
+        // Comparison of finished candle
+        int verdict;
+
+        // Serial number of the newest candle, and its minute
+        long serial, serialKey;
+
+        // Update time, upstream time starts when state is created
+        long lastSent, upstreamTime = System.currentTimeMillis();
+        boolean dirty;
+    }
+
+    static class Bar {
+        long key, serial;
+        int minute;
+        String tradingDay;
+        double open, high, low, close, openInterest;
+        long volume;
+
+        void start(long key, int minute, String tradingDay, long serial, double price, long volume,
+                   double openInterest) {
+            this.key = key;
+            this.minute = minute;
+            this.tradingDay = tradingDay;
+            this.serial = serial;
+            this.open = this.high = this.low = this.close = price;
+            this.volume = volume;
+            this.openInterest = openInterest;
+        }
+
+        void update(double price, long volume, double openInterest) {
+            // Tick without trade only updates open interest
+            if (volume > 0) {
+                this.high = Math.max(this.high, price);
+                this.low = Math.min(this.low, price);
+                this.close = price;
+                this.volume += volume;
+            }
+            this.openInterest = openInterest;
+        }
+
+        void set(long key, long serial, double open, double high, double low, double close,
+                 long volume, double openInterest) {
+            this.key = key;
+            this.serial = serial;
+            this.open = open;
+            this.high = high;
+            this.low = low;
+            this.close = close;
+            this.volume = volume;
+            this.openInterest = openInterest;
+        }
+
+        void copy(Bar b) {
+            set(b.key, b.serial, b.open, b.high, b.low, b.close, b.volume, b.openInterest);
+            this.minute = b.minute;
+            this.tradingDay = b.tradingDay;
+        }
+
+        boolean same(Bar b) {
+            return Math.abs(open - b.open) < 1e-6 && Math.abs(high - b.high) < 1e-6
+                    && Math.abs(low - b.low) < 1e-6 && Math.abs(close - b.close) < 1e-6
+                    && volume == b.volume && Math.abs(openInterest - b.openInterest) < 1e-6;
+        }
+
+        @Override
+        public String toString() {
+            return "O " + open + ", H " + high + ", L " + low + ", C " + close + ", V " + volume + ", OI " + openInterest;
+        }
+    }
+}